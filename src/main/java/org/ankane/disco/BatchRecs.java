@@ -0,0 +1,186 @@
+package org.ankane.disco;
+
+/**
+ * Recommendations for many users at once.
+ *
+ * <p>Users are processed in blocks, and items in tiles that are copied into
+ * a contiguous array small enough to stay in cache. Each item row in a tile
+ * is loaded once and multiplied with four users at a time, so item factors
+ * are read from memory once per block instead of once per user, and the four
+ * sums don't wait on each other.
+ *
+ * <p>Each score is summed in the same order as a single dot product, so
+ * results are the same as {@code userRecs} for each user.
+ */
+class BatchRecs {
+    private static final int USER_BLOCK = 64;
+    // bytes of item factors per tile
+    private static final int TILE_SIZE = 1 << 16;
+
+    private BatchRecs() {}
+
+    /**
+     * Fills ids, scores, and sizes for each user. Users with a negative index get no recommendations.
+     */
+    static void run(Matrix userFactors, Matrix itemFactors, RatedItems rated, int[] users, int count, int[][] ids, float[][] scores, int[] sizes, int threads) {
+        int factors = itemFactors.cols();
+        int items = itemFactors.rows();
+        int tileRows = Math.max(TILE_SIZE / 4 / Math.max(factors, 1), 1);
+        int blocks = users.length / USER_BLOCK + (users.length % USER_BLOCK == 0 ? 0 : 1);
+
+        Parallel.forRange(threads, blocks, 1, () -> {
+            Block block = new Block(factors, count, rated);
+            float[] tile = new float[tileRows * factors];
+            float[] row = new float[factors];
+            float[] sums = new float[4];
+
+            return (start, end) -> {
+                for (int b = start; b < end; b++) {
+                    // gather known users in the block
+                    block.size = 0;
+                    for (int k = b * USER_BLOCK; k < Math.min((b + 1) * USER_BLOCK, users.length); k++) {
+                        if (users[k] >= 0) {
+                            ids[k] = new int[count];
+                            scores[k] = new float[count];
+                            userFactors.getRow(users[k], row);
+                            block.add(users[k], row, ids[k], scores[k]);
+                        }
+                    }
+
+                    int n = block.size;
+                    float[] f = block.factors;
+                    for (int tileStart = 0; tileStart < items; tileStart += tileRows) {
+                        int tileEnd = Math.min(tileStart + tileRows, items);
+                        for (int j = tileStart; j < tileEnd; j++) {
+                            itemFactors.getRow(j, row);
+                            System.arraycopy(row, 0, tile, (j - tileStart) * factors, factors);
+                        }
+
+                        for (int j = tileStart; j < tileEnd; j++) {
+                            int vo = (j - tileStart) * factors;
+                            int m = 0;
+                            for (; m + 4 <= n; m += 4) {
+                                Kernels.dot4(tile, vo, f, m * factors, factors, factors, sums);
+                                block.push(m, j, sums[0]);
+                                block.push(m + 1, j, sums[1]);
+                                block.push(m + 2, j, sums[2]);
+                                block.push(m + 3, j, sums[3]);
+                            }
+                            for (; m < n; m++) {
+                                block.push(m, j, Recommender.dot(tile, vo, f, m * factors, factors));
+                            }
+                        }
+                    }
+
+                    for (int m = 0; m < n; m++) {
+                        TopK.sort(block.ids[m], block.scores[m], block.sizes[m]);
+                    }
+                    block.copySizes(sizes, users, b * USER_BLOCK);
+                }
+            };
+        });
+    }
+
+    /**
+     * The users in a block and their heaps.
+     */
+    private static class Block {
+        private int factorsPerUser;
+        private int count;
+        private RatedItems rated;
+
+        int size;
+        float[] factors;
+        int[] users;
+        int[][] ids;
+        float[][] scores;
+        int[] sizes;
+        // next rated item for users with sorted runs
+        private int[] next;
+        private int[] end;
+        private long[][] bits;
+        // next item added after fitting
+        private int[][] added;
+        private int[] nextAdded;
+
+        Block(int factorsPerUser, int count, RatedItems rated) {
+            this.factorsPerUser = factorsPerUser;
+            this.count = count;
+            this.rated = rated;
+            this.factors = new float[USER_BLOCK * factorsPerUser];
+            this.users = new int[USER_BLOCK];
+            this.ids = new int[USER_BLOCK][];
+            this.scores = new float[USER_BLOCK][];
+            this.sizes = new int[USER_BLOCK];
+            this.next = new int[USER_BLOCK];
+            this.end = new int[USER_BLOCK];
+            this.bits = new long[USER_BLOCK][];
+            this.added = new int[USER_BLOCK][];
+            this.nextAdded = new int[USER_BLOCK];
+        }
+
+        void add(int u, float[] row, int[] ids, float[] scores) {
+            int m = this.size++;
+            System.arraycopy(row, 0, this.factors, m * this.factorsPerUser, this.factorsPerUser);
+            this.users[m] = u;
+            this.ids[m] = ids;
+            this.scores[m] = scores;
+            this.sizes[m] = 0;
+            this.next[m] = this.rated.start(u);
+            this.end[m] = this.rated.end(u);
+            this.bits[m] = this.rated.bitset(u);
+            this.added[m] = this.rated.added(u);
+            this.nextAdded[m] = 0;
+        }
+
+        // items arrive in increasing order, so later items never win ties
+        // and rated items are skipped with merge walks
+        void push(int m, int j, float score) {
+            int size = this.sizes[m];
+            float[] scores = this.scores[m];
+            if (size == this.count && !(score > scores[0]) && !Float.isNaN(scores[0])) {
+                return;
+            }
+
+            long[] bits = this.bits[m];
+            if (bits != null) {
+                if ((bits[j >>> 6] & (1L << j)) != 0) {
+                    return;
+                }
+            } else {
+                int[] rated = this.rated.indices();
+                int n = this.next[m];
+                while (n < this.end[m] && rated[n] < j) {
+                    n++;
+                }
+                this.next[m] = n;
+                if (n < this.end[m] && rated[n] == j) {
+                    return;
+                }
+            }
+
+            int[] added = this.added[m];
+            if (added.length > 0) {
+                int n = this.nextAdded[m];
+                while (n < added.length && added[n] < j) {
+                    n++;
+                }
+                this.nextAdded[m] = n;
+                if (n < added.length && added[n] == j) {
+                    return;
+                }
+            }
+
+            this.sizes[m] = TopK.push(this.ids[m], scores, size, this.count, j, score);
+        }
+
+        void copySizes(int[] sizes, int[] users, int start) {
+            int m = 0;
+            for (int k = start; k < Math.min(start + USER_BLOCK, users.length); k++) {
+                if (users[k] >= 0) {
+                    sizes[k] = this.sizes[m++];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.ankane.disco;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * A matrix stored in float buffers, which can be direct or memory-mapped.
+ */
+class BufferMatrix extends Matrix {
+    // keep each segment under 2 GB of bytes
+    static final int MAX_SEGMENT_SIZE = 1 << 28;
+
+    private FloatBuffer[] segments;
+
+    /**
+     * Creates a matrix from buffers with the sizes given by {@link #segmentSize(int)}.
+     */
+    BufferMatrix(int rows, int cols, FloatBuffer[] segments) {
+        super(rows, cols, MAX_SEGMENT_SIZE);
+
+        if (segments.length != segments()) {
+            throw new IllegalArgumentException("Wrong number of segments");
+        }
+        this.segments = segments;
+    }
+
+    /**
+     * Creates a matrix of zeros in direct buffers outside the heap.
+     *
+     * <p>The memory is limited by -XX:MaxDirectMemorySize and is freed when the matrix is garbage collected.
+     */
+    static BufferMatrix allocateDirect(int rows, int cols) {
+        int segmentRows = segmentRows(cols);
+        FloatBuffer[] segments = new FloatBuffer[rows / segmentRows + (rows % segmentRows == 0 ? 0 : 1)];
+        for (int s = 0; s < segments.length; s++) {
+            int size = Math.min(segmentRows, rows - s * segmentRows) * cols;
+            segments[s] = ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+        return new BufferMatrix(rows, cols, segments);
+    }
+
+    /**
+     * Returns the number of rows per segment.
+     */
+    static int segmentRows(int cols) {
+        return 1 << segmentShift(cols, MAX_SEGMENT_SIZE);
+    }
+
+    @Override
+    boolean readOnly() {
+        return this.segments.length > 0 && this.segments[0].isReadOnly();
+    }
+
+    private FloatBuffer data(int row) {
+        return this.segments[segment(row)];
+    }
+
+    float get(int row, int col) {
+        return data(row).get(offset(row) + col);
+    }
+
+    void set(int row, int col, float value) {
+        data(row).put(offset(row) + col, value);
+    }
+
+    void getRow(int row, float[] dst) {
+        FloatBuffer data = data(row);
+        int offset = offset(row);
+        for (int i = 0; i < cols(); i++) {
+            dst[i] = data.get(offset + i);
+        }
+    }
+
+    void setRow(int row, float[] src) {
+        FloatBuffer data = data(row);
+        int offset = offset(row);
+        for (int i = 0; i < cols(); i++) {
+            data.put(offset + i, src[i]);
+        }
+    }
+
+    float dot(int row, float[] x) {
+        return Kernels.dot(data(row), offset(row), x, 0, cols());
+    }
+
+    float dot(int row, float[] x, int start, int end) {
+        return Kernels.dot(data(row), offset(row) + start, x, start, end - start);
+    }
+
+    void addRowTo(int row, float a, float[] x) {
+        FloatBuffer data = data(row);
+        int offset = offset(row);
+        for (int i = 0; i < cols(); i++) {
+            x[i] += a * data.get(offset + i);
+        }
+    }
+}
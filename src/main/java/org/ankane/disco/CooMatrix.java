@@ -1,5 +1,7 @@
 package org.ankane.disco;
 
+import java.util.Arrays;
+
 /**
  * A coordinate list (COO) matrix.
  */
@@ -10,14 +12,17 @@ class CooMatrix {
     public float[] values;
     private int size;
 
-    CooMatrix(int size) {
-        this.rowIndices = new int[size];
-        this.colIndices = new int[size];
-        this.values = new float[size];
+    CooMatrix(int capacity) {
+        this.rowIndices = new int[capacity];
+        this.colIndices = new int[capacity];
+        this.values = new float[capacity];
         this.size = 0;
     }
 
     public void add(int rowIndex, int colIndex, float value) {
+        if (this.size == this.values.length) {
+            grow();
+        }
         this.rowIndices[size] = rowIndex;
         this.colIndices[size] = colIndex;
         this.values[size] = value;
@@ -27,4 +32,14 @@ class CooMatrix {
     public int size() {
         return this.size;
     }
+
+    private void grow() {
+        int capacity = (int) Math.min(Math.max(this.size + (this.size >> 1), 16L), Integer.MAX_VALUE - 8);
+        if (capacity == this.size) {
+            throw new OutOfMemoryError("Too many entries");
+        }
+        this.rowIndices = Arrays.copyOf(this.rowIndices, capacity);
+        this.colIndices = Arrays.copyOf(this.colIndices, capacity);
+        this.values = Arrays.copyOf(this.values, capacity);
+    }
 }
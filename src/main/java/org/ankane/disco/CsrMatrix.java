@@ -0,0 +1,43 @@
+package org.ankane.disco;
+
+/**
+ * A compressed sparse row (CSR) matrix.
+ */
+class CsrMatrix {
+    // row i is stored in [indptr[i], indptr[i + 1])
+    public int[] indptr;
+    public int[] indices;
+    public float[] data;
+
+    /**
+     * Builds a matrix from coordinates with a counting sort.
+     *
+     * <p>The sort is stable, so entries keep their original order within each row.
+     */
+    CsrMatrix(int rows, int[] rowIndices, int[] colIndices, float[] values, int size) {
+        this.indptr = new int[rows + 1];
+        this.indices = new int[size];
+        this.data = new float[size];
+
+        // first pass counts entries per row
+        for (int j = 0; j < size; j++) {
+            this.indptr[rowIndices[j] + 1]++;
+        }
+        for (int i = 0; i < rows; i++) {
+            this.indptr[i + 1] += this.indptr[i];
+        }
+
+        // second pass places entries
+        int[] next = new int[rows];
+        System.arraycopy(this.indptr, 0, next, 0, rows);
+        for (int j = 0; j < size; j++) {
+            int n = next[rowIndices[j]]++;
+            this.indices[n] = colIndices[j];
+            this.data[n] = values[j];
+        }
+    }
+
+    public int rows() {
+        return this.indptr.length - 1;
+    }
+}
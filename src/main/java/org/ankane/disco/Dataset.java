@@ -1,19 +1,20 @@
 package org.ankane.disco;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * A dataset.
  */
 public class Dataset<T, U> {
-    List<Rating<T, U>> data;
+    // ids are mapped to indices as ratings are added
+    // and ratings are stored in primitive columns
+    IdMap<T> userMap;
+    IdMap<U> itemMap;
+    CooMatrix data;
 
     /**
      * Creates a new dataset.
      */
     public Dataset() {
-        this.data = new ArrayList<>();
+        this(10);
     }
 
     /**
@@ -22,7 +23,12 @@ public class Dataset<T, U> {
      * @param initialCapacity the initial capacity of the dataset
      */
     public Dataset(int initialCapacity) {
-        this.data = new ArrayList<>(initialCapacity);
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("Illegal Capacity: " + initialCapacity);
+        }
+        this.userMap = new IdMap<>();
+        this.itemMap = new IdMap<>();
+        this.data = new CooMatrix(initialCapacity);
     }
 
     /**
@@ -33,7 +39,7 @@ public class Dataset<T, U> {
      * @param value - the value
      */
     public void add(T userId, U itemId, float value) {
-        data.add(new Rating<T, U>(userId, itemId, value));
+        data.add(userMap.add(userId), itemMap.add(itemId), value);
     }
 
     /**
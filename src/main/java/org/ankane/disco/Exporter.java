@@ -0,0 +1,353 @@
+package org.ankane.disco;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Exports recommendations for all users or items.
+ *
+ * <p>Rows are split into chunks that are computed in parallel and written in
+ * order, with at most one chunk per thread in memory.
+ */
+public class Exporter<T, U> {
+    private static final int CHUNK_SIZE = 256;
+    // signature, flags, and header extension length
+    private static final byte[] BINARY_HEADER = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0, 0, 0, 0, 0, 0, 0, 0, 0};
+    // a field count of -1
+    private static final byte[] BINARY_TRAILER = {(byte) 0xff, (byte) 0xff};
+
+    private Recommender<T, U> recommender;
+    private int count;
+    private int start;
+    private int end;
+    private int threads;
+    private boolean binary;
+
+    Exporter(Recommender<T, U> recommender) {
+        this.recommender = recommender;
+        this.count = 10;
+        this.start = 0;
+        this.end = -1;
+        this.threads = 1;
+        this.binary = false;
+    }
+
+    /**
+     * Sets the number of recommendations for each user or item.
+     */
+    public Exporter<T, U> count(int value) {
+        this.count = value;
+        return this;
+    }
+
+    /**
+     * Sets the range of user or item indices to export, which can be used to resume an export.
+     *
+     * <p>Indices refer to positions in {@link Recommender#userIds()} or {@link Recommender#itemIds()}.
+     */
+    public Exporter<T, U> range(int start, int end) {
+        this.start = start;
+        this.end = end;
+        return this;
+    }
+
+    /**
+     * Sets the number of threads.
+     */
+    public Exporter<T, U> threads(int value) {
+        this.threads = value;
+        return this;
+    }
+
+    /**
+     * Sets whether to write Postgres binary COPY format to channels instead of CSV.
+     *
+     * <p>Binary output can be loaded with COPY ... WITH (FORMAT binary). Integer ids are written as integer, Long ids as bigint, other ids as text, and scores as real, so the table's columns must have those types.
+     */
+    public Exporter<T, U> binary(boolean value) {
+        this.binary = value;
+        return this;
+    }
+
+    /**
+     * Passes recommendations for each user to a callback.
+     *
+     * <p>Users are passed in order. The callback is never called concurrently.
+     */
+    public void userRecs(BiConsumer<T, List<Rec<U>>> callback) {
+        export(true, (offset, ids, scores, sizes) -> () -> {
+            for (int k = 0; k < sizes.length; k++) {
+                callback.accept(this.recommender.userId(offset + k), recs(ids[k], scores[k], sizes[k]));
+            }
+        });
+    }
+
+    /**
+     * Writes recommendations for each user as CSV with user id, item id, and score columns.
+     *
+     * <p>The output has no header and can be loaded with COPY ... WITH (FORMAT csv) in Postgres. Use {@link #binary(boolean)} for binary COPY format.
+     */
+    public void userRecs(WritableByteChannel channel) throws IOException {
+        exportChannel(true, channel);
+    }
+
+    /**
+     * Passes recommendations for each item to a callback.
+     *
+     * <p>Items are passed in order. The callback is never called concurrently.
+     */
+    public void itemRecs(BiConsumer<U, List<Rec<U>>> callback) {
+        export(false, (offset, ids, scores, sizes) -> () -> {
+            for (int k = 0; k < sizes.length; k++) {
+                callback.accept(this.recommender.itemId(offset + k), recs(ids[k], scores[k], sizes[k]));
+            }
+        });
+    }
+
+    /**
+     * Writes recommendations for each item as CSV with item id, recommended item id, and score columns.
+     *
+     * <p>The output has no header and can be loaded with COPY ... WITH (FORMAT csv) in Postgres. Use {@link #binary(boolean)} for binary COPY format.
+     */
+    public void itemRecs(WritableByteChannel channel) throws IOException {
+        exportChannel(false, channel);
+    }
+
+    /**
+     * Receives the recommendations for a chunk of rows starting at offset.
+     */
+    private interface ChunkWriter {
+        /**
+         * Prepares output on the thread that computed the chunk and returns the part that runs in order.
+         */
+        OrderedOutput.Write prepare(int offset, int[][] ids, float[][] scores, int[] sizes);
+    }
+
+    private void exportChannel(boolean users, WritableByteChannel channel) throws IOException {
+        if (this.binary) {
+            writeFully(channel, ByteBuffer.wrap(BINARY_HEADER));
+        }
+        try {
+            export(users, (offset, ids, scores, sizes) -> {
+                ByteBuffer buffer = this.binary ? binaryChunk(users, offset, ids, scores, sizes) : csvChunk(users, offset, ids, scores, sizes);
+                return () -> writeFully(channel, buffer);
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (this.binary) {
+            writeFully(channel, ByteBuffer.wrap(BINARY_TRAILER));
+        }
+    }
+
+    private ByteBuffer csvChunk(boolean users, int offset, int[][] ids, float[][] scores, int[] sizes) {
+        StringBuilder line = new StringBuilder();
+        for (int k = 0; k < sizes.length; k++) {
+            Object id = users ? this.recommender.userId(offset + k) : this.recommender.itemId(offset + k);
+            for (int j = 0; j < sizes[k]; j++) {
+                appendCsv(line, id);
+                line.append(',');
+                appendCsv(line, this.recommender.itemId(ids[k][j]));
+                line.append(',');
+                line.append(scores[k][j]);
+                line.append('\n');
+            }
+        }
+        return ByteBuffer.wrap(line.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // each tuple is a field count followed by the length and bytes of each field
+    // https://www.postgresql.org/docs/current/sql-copy.html
+    private ByteBuffer binaryChunk(boolean users, int offset, int[][] ids, float[][] scores, int[] sizes) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            for (int k = 0; k < sizes.length; k++) {
+                Object id = users ? this.recommender.userId(offset + k) : this.recommender.itemId(offset + k);
+                for (int j = 0; j < sizes[k]; j++) {
+                    out.writeShort(3);
+                    writeBinary(out, id);
+                    writeBinary(out, this.recommender.itemId(ids[k][j]));
+                    out.writeInt(4);
+                    out.writeFloat(scores[k][j]);
+                }
+            }
+        } catch (IOException e) {
+            // not thrown by an in-memory stream
+            throw new UncheckedIOException(e);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    private static void writeBinary(DataOutputStream out, Object id) throws IOException {
+        if (id instanceof Integer) {
+            out.writeInt(4);
+            out.writeInt((Integer) id);
+        } else if (id instanceof Long) {
+            out.writeInt(8);
+            out.writeLong((Long) id);
+        } else {
+            byte[] value = String.valueOf(id).getBytes(StandardCharsets.UTF_8);
+            out.writeInt(value.length);
+            out.write(value);
+        }
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void export(boolean users, ChunkWriter writer) {
+        int rows = users ? this.recommender.userCount() : this.recommender.itemCount();
+        int start = Math.max(this.start, 0);
+        int end = this.end < 0 ? rows : Math.min(this.end, rows);
+        if (start >= end) {
+            return;
+        }
+
+        int count = Math.max(Math.min(this.count, this.recommender.itemCount()), 0);
+        int chunks = (end - start + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        OrderedOutput output = new OrderedOutput();
+
+        Parallel.run(Math.min(this.threads, chunks), (t) -> {
+            int chunk;
+            while ((chunk = output.nextChunk(chunks)) >= 0) {
+                int offset = start + chunk * CHUNK_SIZE;
+                int size = Math.min(CHUNK_SIZE, end - offset);
+                int[][] ids = new int[size][];
+                float[][] scores = new float[size][];
+                int[] sizes = new int[size];
+
+                OrderedOutput.Write write;
+                try {
+                    if (users) {
+                        int[] indices = new int[size];
+                        for (int k = 0; k < size; k++) {
+                            indices[k] = offset + k;
+                        }
+                        this.recommender.batchUserRecs(indices, count, ids, scores, sizes);
+                    } else {
+                        for (int k = 0; k < size; k++) {
+                            ids[k] = new int[count];
+                            scores[k] = new float[count];
+                            sizes[k] = this.recommender.similarItems(offset + k, ids[k], scores[k], count);
+                        }
+                    }
+                    write = writer.prepare(offset, ids, scores, sizes);
+                } catch (RuntimeException | Error e) {
+                    output.fail();
+                    throw e;
+                }
+
+                output.write(chunk, write);
+            }
+        });
+    }
+
+    private List<Rec<U>> recs(int[] ids, float[] scores, int size) {
+        List<Rec<U>> recs = new ArrayList<>(size);
+        for (int j = 0; j < size; j++) {
+            recs.add(new Rec<U>(this.recommender.itemId(ids[j]), scores[j]));
+        }
+        return recs;
+    }
+
+    private static void appendCsv(StringBuilder sb, Object id) {
+        String value = String.valueOf(id);
+        boolean quote = false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                quote = true;
+                break;
+            }
+        }
+        if (!quote) {
+            sb.append(value);
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                sb.append('"');
+            }
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Hands out chunks and lets them write in order.
+     */
+    private static class OrderedOutput {
+        private int next;
+        private int written;
+        private boolean failed;
+
+        synchronized int nextChunk(int chunks) {
+            if (this.failed || this.next >= chunks) {
+                return -1;
+            }
+            return this.next++;
+        }
+
+        synchronized void fail() {
+            this.failed = true;
+            notifyAll();
+        }
+
+        /**
+         * The part of a chunk that runs in order.
+         */
+        interface Write {
+            void run() throws IOException;
+        }
+
+        // waits for earlier chunks so output is in order
+        // only the chunk whose turn it is writes, so the write itself doesn't need the lock
+        void write(int chunk, Write write) {
+            synchronized (this) {
+                boolean interrupted = false;
+                while (this.written != chunk && !this.failed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                if (this.failed) {
+                    return;
+                }
+            }
+
+            try {
+                write.run();
+            } catch (IOException e) {
+                fail();
+                throw new UncheckedIOException(e);
+            } catch (RuntimeException | Error e) {
+                fail();
+                throw e;
+            }
+
+            synchronized (this) {
+                this.written++;
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package org.ankane.disco;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The ids of users or items, with rows added by fold-in numbered after the fitted rows.
+ *
+ * <p>Instances are snapshots. Adding a row writes past the end of arrays that
+ * are shared with earlier snapshots and returns a snapshot with a larger size,
+ * and replacing a row swaps a single immutable {@link Row}, so reads never
+ * need a lock. Changes are made by one thread at a time.
+ *
+ * <p>Snapshots can also carry the Gramian of all rows, which fold-in on the other
+ * side needs. Each change returns a snapshot with its own copy.
+ */
+class FoldedRows<V> {
+    /**
+     * The factors of an added row and the sorted rows on the other side it interacted with.
+     */
+    static class Row {
+        final float[] factors;
+        final float norm;
+        final int[] rated;
+
+        Row(float[] factors, int[] rated) {
+            this.factors = factors;
+            this.norm = (float) Math.sqrt(Recommender.dot(factors, 0, factors, 0, factors.length));
+            this.rated = rated;
+        }
+
+        boolean rated(int j) {
+            return Arrays.binarySearch(this.rated, j) >= 0;
+        }
+    }
+
+    private final IdMap<V> map;
+    private final int offset;
+    // indices of added ids, shared by all snapshots
+    private final ConcurrentHashMap<V, Integer> indices;
+    private final Object[] ids;
+    private final Row[] rows;
+    private final int size;
+    // sum of outer products of the factors of fitted and added rows, or null if not computed
+    private final float[] gram;
+
+    FoldedRows(IdMap<V> map) {
+        this(map, new ConcurrentHashMap<>(), new Object[0], new Row[0], 0, null);
+    }
+
+    private FoldedRows(IdMap<V> map, ConcurrentHashMap<V, Integer> indices, Object[] ids, Row[] rows, int size, float[] gram) {
+        this.map = map;
+        this.offset = map.size();
+        this.indices = indices;
+        this.ids = ids;
+        this.rows = rows;
+        this.size = size;
+        this.gram = gram;
+    }
+
+    /**
+     * Returns the map of fitted ids.
+     */
+    IdMap<V> map() {
+        return this.map;
+    }
+
+    /**
+     * Returns the number of fitted rows, which is the index of the first added row.
+     */
+    int offset() {
+        return this.offset;
+    }
+
+    /**
+     * Returns the number of added rows.
+     */
+    int added() {
+        return this.size;
+    }
+
+    /**
+     * Returns the number of fitted and added rows.
+     */
+    int rows() {
+        return this.offset + this.size;
+    }
+
+    /**
+     * Returns the index of an id, or -1 if it's not present.
+     */
+    int get(V id) {
+        int i = this.map.get(id);
+        if (i >= 0 || this.size == 0 || id == null) {
+            return i;
+        }
+        Integer k = this.indices.get(id);
+        return k != null && k < this.size ? this.offset + k : -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    V lookup(int i) {
+        return i < this.offset ? this.map.lookup(i) : (V) this.ids[i - this.offset];
+    }
+
+    /**
+     * Returns an added row by its index.
+     */
+    Row row(int i) {
+        return this.rows[i - this.offset];
+    }
+
+    List<V> ids() {
+        return new Ids();
+    }
+
+    /**
+     * Returns the Gramian of all rows, or null if it wasn't computed.
+     */
+    float[] gram() {
+        return this.gram;
+    }
+
+    /**
+     * Returns a snapshot with the same rows and a Gramian of them.
+     */
+    FoldedRows<V> withGram(float[] gram) {
+        return new FoldedRows<V>(this.map, this.indices, this.ids, this.rows, this.size, gram);
+    }
+
+    /**
+     * Adds a row, or replaces it if the id was already added, and returns the new snapshot.
+     */
+    FoldedRows<V> put(V id, Row row) {
+        Integer k = this.indices.get(id);
+        if (k != null && k < this.size) {
+            float[] gram = updateGram(this.rows[k], row);
+            this.rows[k] = row;
+            return new FoldedRows<V>(this.map, this.indices, this.ids, this.rows, this.size, gram);
+        }
+
+        Object[] ids = this.ids;
+        Row[] rows = this.rows;
+        if (this.size == rows.length) {
+            int capacity = Math.max(16, rows.length + (rows.length >> 1));
+            ids = Arrays.copyOf(ids, capacity);
+            rows = Arrays.copyOf(rows, capacity);
+        }
+        ids[this.size] = id;
+        rows[this.size] = row;
+        this.indices.put(id, this.size);
+        return new FoldedRows<V>(this.map, this.indices, ids, rows, this.size + 1, updateGram(null, row));
+    }
+
+    // earlier snapshots keep their Gramian, so it's copied
+    private float[] updateGram(Row previous, Row row) {
+        if (this.gram == null) {
+            return null;
+        }
+        float[] gram = this.gram.clone();
+        if (previous != null) {
+            Recommender.addOuter(gram, -1.0f, previous.factors);
+        }
+        Recommender.addOuter(gram, 1.0f, row.factors);
+        return gram;
+    }
+
+    /**
+     * Writes the added ids, factors, and rated rows.
+     */
+    void write(ModelFile.Writer out, int factors) throws IOException {
+        IdMap<V> ids = new IdMap<>();
+        for (int k = 0; k < this.size; k++) {
+            ids.add(lookup(this.offset + k));
+        }
+        ids.write(out);
+
+        out.putInt(factors);
+        for (int k = 0; k < this.size; k++) {
+            Row row = this.rows[k];
+            out.putFloats(row.factors, 0, factors);
+            out.putInt(row.rated.length);
+            out.putInts(row.rated, 0, row.rated.length);
+        }
+    }
+
+    /**
+     * Reads rows written by {@link #write(ModelFile.Writer, int)} and adds them to this snapshot.
+     */
+    FoldedRows<V> read(ModelFile.Reader in) throws IOException {
+        IdMap<V> ids = IdMap.read(in);
+        int factors = in.getInt();
+        FoldedRows<V> rows = this;
+        for (int k = 0; k < ids.size(); k++) {
+            float[] f = new float[factors];
+            in.getFloats(f, 0, factors);
+            int[] rated = in.getInts(in.getInt());
+            rows = rows.put(ids.lookup(k), new Row(f, rated));
+        }
+        return rows;
+    }
+
+    private class Ids extends AbstractList<V> implements RandomAccess {
+        @Override
+        public V get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index);
+            }
+            return lookup(index);
+        }
+
+        @Override
+        public int size() {
+            return rows();
+        }
+    }
+}
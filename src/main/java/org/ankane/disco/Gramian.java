@@ -0,0 +1,88 @@
+package org.ankane.disco;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Computes YtY, the sum of the outer products of the rows of a matrix.
+ *
+ * <p>Only the upper triangle is summed and then mirrored. Rows are copied
+ * in tiles, and each tile is added one block of the result at a time so the
+ * block stays in cache.
+ *
+ * <p>Rows are split into a number of parts that depends only on the number
+ * of rows, and the sums of the parts are added in order, so results don't
+ * depend on the number of threads. Each entry sums the rows of a part in
+ * order, the same as adding one outer product at a time.
+ */
+class Gramian {
+    private static final int TILE_ROWS = 256;
+    // columns per block of the result
+    private static final int BLOCK = 64;
+    private static final int PART_ROWS = 4096;
+    private static final int MAX_PARTS = 16;
+
+    private Gramian() {}
+
+    static float[] compute(Matrix y, int threads, Executor executor) {
+        int rows = y.rows();
+        int factors = y.cols();
+        int parts = Math.max(Math.min(rows / PART_ROWS, MAX_PARTS), 1);
+        float[][] sums = new float[parts][];
+
+        Parallel.forRange(threads, executor, parts, 1, () -> {
+            float[] tile = new float[TILE_ROWS * factors];
+            float[] row = new float[factors];
+
+            return (start, end) -> {
+                for (int p = start; p < end; p++) {
+                    int partStart = (int) ((long) rows * p / parts);
+                    int partEnd = (int) ((long) rows * (p + 1) / parts);
+                    float[] gram = new float[factors * factors];
+                    for (int tileStart = partStart; tileStart < partEnd; tileStart += TILE_ROWS) {
+                        int n = Math.min(TILE_ROWS, partEnd - tileStart);
+                        for (int k = 0; k < n; k++) {
+                            y.getRow(tileStart + k, row);
+                            System.arraycopy(row, 0, tile, k * factors, factors);
+                        }
+                        addTile(gram, tile, n, factors);
+                    }
+                    sums[p] = gram;
+                }
+            };
+        });
+
+        float[] gram = sums[0];
+        for (int p = 1; p < parts; p++) {
+            for (int i = 0; i < factors; i++) {
+                for (int j = i; j < factors; j++) {
+                    gram[i * factors + j] += sums[p][i * factors + j];
+                }
+            }
+        }
+        for (int i = 0; i < factors; i++) {
+            for (int j = i + 1; j < factors; j++) {
+                gram[j * factors + i] = gram[i * factors + j];
+            }
+        }
+        return gram;
+    }
+
+    // adds the upper triangle of the outer products of the first n rows of a tile
+    private static void addTile(float[] gram, float[] tile, int n, int factors) {
+        for (int blockI = 0; blockI < factors; blockI += BLOCK) {
+            int endI = Math.min(blockI + BLOCK, factors);
+            for (int blockJ = blockI; blockJ < factors; blockJ += BLOCK) {
+                int endJ = Math.min(blockJ + BLOCK, factors);
+                for (int k = 0; k < n; k++) {
+                    int offset = k * factors;
+                    for (int i = blockI; i < endI; i++) {
+                        int j = Math.max(blockJ, i);
+                        if (j < endJ) {
+                            Kernels.scaledAdd(gram, i * factors + j, tile[offset + i], tile, offset + j, endJ - j);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.ankane.disco;
+
+/**
+ * A matrix stored in float arrays on the heap.
+ */
+class HeapMatrix extends Matrix {
+    private static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+    private float[][] segments;
+
+    HeapMatrix(int rows, int cols) {
+        super(rows, cols, MAX_SEGMENT_SIZE);
+
+        this.segments = new float[segments()][];
+        for (int s = 0; s < this.segments.length; s++) {
+            this.segments[s] = new float[segmentSize(s)];
+        }
+    }
+
+    /**
+     * Returns the array that holds a row.
+     */
+    float[] data(int row) {
+        return this.segments[segment(row)];
+    }
+
+    float get(int row, int col) {
+        return data(row)[offset(row) + col];
+    }
+
+    void set(int row, int col, float value) {
+        data(row)[offset(row) + col] = value;
+    }
+
+    void getRow(int row, float[] dst) {
+        System.arraycopy(data(row), offset(row), dst, 0, cols());
+    }
+
+    void setRow(int row, float[] src) {
+        System.arraycopy(src, 0, data(row), offset(row), cols());
+    }
+
+    float dot(int row, float[] x) {
+        return Recommender.dot(data(row), offset(row), x, 0, cols());
+    }
+
+    float dot(int row, float[] x, int start, int end) {
+        return Recommender.dot(data(row), offset(row) + start, x, start, end - start);
+    }
+
+    @Override
+    void dot4(int row, float[] x, float[] out) {
+        float[] data = data(row);
+        if (data != data(row + 3)) {
+            super.dot4(row, x, out);
+            return;
+        }
+        Kernels.dot4(x, 0, data, offset(row), cols(), cols(), out);
+    }
+
+    void addRowTo(int row, float a, float[] x) {
+        Recommender.scaledAdd(x, 0, a, data(row), offset(row), cols());
+    }
+
+    @Override
+    float dot(int row, Matrix other, int otherRow) {
+        if (other instanceof HeapMatrix) {
+            return Recommender.dot(data(row), offset(row), ((HeapMatrix) other).data(otherRow), other.offset(otherRow), cols());
+        }
+        return super.dot(row, other, otherRow);
+    }
+}
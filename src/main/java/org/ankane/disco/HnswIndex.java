@@ -0,0 +1,583 @@
+package org.ankane.disco;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/**
+ * A hierarchical navigable small world (HNSW) graph for approximate nearest
+ * neighbor search by cosine similarity or inner product.
+ *
+ * <p>https://arxiv.org/abs/1603.09320
+ *
+ * <p>The graph only stores links. Vectors are read from the rows of a factor
+ * matrix, so the index adds about (2M + 1) ints per row.
+ *
+ * <p>For inner product, each row gets an extra dimension so that all rows
+ * have the same norm, which turns the search into nearest neighbor search.
+ * The query gets a zero in that dimension, so its scores are exact inner
+ * products with the original rows.
+ * https://www.microsoft.com/en-us/research/publication/speeding-up-the-xbox-recommender-system-using-a-euclidean-transformation-for-inner-product-spaces/
+ */
+class HnswIndex {
+    private static final int MAX_LEVEL = 32;
+    private static final int LOCKS = 4096;
+
+    private int m;
+    private int maxM0;
+    private int efConstruction;
+    // can be changed while serving
+    private volatile int efSearch;
+    private byte[] levels;
+    // links on level 0 are stored in a shared array as a count followed by up to maxM0 nodes
+    private int[] links;
+    // links above level 0 for each node, with a count followed by up to m nodes per level
+    private int[][] upperLinks;
+    private int entryPoint;
+    private int maxLevel;
+    private boolean innerProduct;
+    private float maxNorm;
+
+    private Matrix factors;
+    private Matrix norms;
+    // only used while building
+    private Object[] locks;
+
+    /**
+     * Builds an index over the rows of a factor matrix.
+     */
+    HnswIndex(Matrix factors, Matrix norms, boolean innerProduct, int m, int efConstruction, int efSearch, Random prng, int threads, Executor executor) {
+        if (m < 2) {
+            throw new IllegalArgumentException("M must be at least 2");
+        }
+
+        int n = factors.rows();
+        init(n, m, efConstruction, efSearch);
+        this.factors = factors;
+        this.norms = norms;
+        this.innerProduct = innerProduct;
+        for (int i = 0; i < n; i++) {
+            this.maxNorm = Math.max(this.maxNorm, norms.get(i, 0));
+        }
+
+        // levels come from the seed, so the graph is repeatable with one thread
+        double ml = 1.0 / Math.log(m);
+        for (int i = 0; i < n; i++) {
+            int level = (int) Math.min(-Math.log(1.0 - prng.nextDouble()) * ml, MAX_LEVEL);
+            this.levels[i] = (byte) level;
+            if (level > 0) {
+                this.upperLinks[i] = new int[level * (m + 1)];
+            }
+        }
+
+        if (n == 0) {
+            return;
+        }
+
+        this.entryPoint = 0;
+        this.maxLevel = this.levels[0];
+        this.locks = new Object[LOCKS];
+        for (int i = 0; i < LOCKS; i++) {
+            this.locks[i] = new Object();
+        }
+
+        Parallel.forRange(threads, executor, n - 1, 64, () -> {
+            Search search = new Search(factors.cols());
+            return (start, end) -> {
+                for (int i = start; i < end; i++) {
+                    insert(i + 1, search);
+                }
+            };
+        });
+
+        this.locks = null;
+    }
+
+    private HnswIndex() {}
+
+    private void init(int n, int m, int efConstruction, int efSearch) {
+        this.m = m;
+        this.maxM0 = 2 * m;
+        this.efConstruction = Math.max(efConstruction, m);
+        this.efSearch = efSearch;
+        if ((long) n * (this.maxM0 + 1) > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many rows for index");
+        }
+        this.levels = new byte[n];
+        this.links = new int[n * (this.maxM0 + 1)];
+        this.upperLinks = new int[n][];
+        this.entryPoint = -1;
+        this.maxLevel = -1;
+    }
+
+    /**
+     * Returns the default size of the candidate list for searches.
+     */
+    int efSearch() {
+        return this.efSearch;
+    }
+
+    void setEfSearch(int value) {
+        this.efSearch = value;
+    }
+
+    /**
+     * Finds up to ef rows with the highest scores for a query.
+     *
+     * <p>Scores are inner products, or cosine similarities if the index is for
+     * cosine and the query has unit length. Rows are sorted from best to worst,
+     * and the number of rows is returned.
+     */
+    int search(float[] query, int ef, int[] ids, float[] scores) {
+        if (this.entryPoint < 0 || ef <= 0) {
+            return 0;
+        }
+
+        Search search = new Search(0);
+        int entry = this.entryPoint;
+        for (int level = this.maxLevel; level > 0; level--) {
+            entry = greedy(query, 0.0f, entry, level, search);
+        }
+        int size = searchLayer(query, 0.0f, entry, ef, 0, search);
+        System.arraycopy(search.ids, 0, ids, 0, size);
+        System.arraycopy(search.scores, 0, scores, 0, size);
+        TopK.sort(ids, scores, size);
+        return size;
+    }
+
+    /**
+     * Returns a row scaled to unit length.
+     */
+    float[] query(int row) {
+        float[] query = this.factors.row(row);
+        float scale = inverseNorm(row);
+        for (int i = 0; i < query.length; i++) {
+            query[i] *= scale;
+        }
+        return query;
+    }
+
+    void write(ModelFile.Writer out) throws IOException {
+        int n = this.levels.length;
+        out.putInt(n);
+        out.putInt(this.m);
+        out.putInt(this.efConstruction);
+        out.putInt(this.efSearch);
+        out.putInt(this.entryPoint);
+        out.putInt(this.maxLevel);
+        out.putByte((byte) (this.innerProduct ? 1 : 0));
+        out.putFloat(this.maxNorm);
+        out.putBytes(this.levels);
+        out.putInts(this.links, 0, this.links.length);
+        for (int i = 0; i < n; i++) {
+            if (this.upperLinks[i] != null) {
+                out.putInts(this.upperLinks[i], 0, this.upperLinks[i].length);
+            }
+        }
+    }
+
+    /**
+     * Reads an index written by {@link #write(ModelFile.Writer)} over the given factors.
+     */
+    static HnswIndex read(ModelFile.Reader in, Matrix factors, Matrix norms) throws IOException {
+        int n = in.getInt();
+        if (n != factors.rows()) {
+            throw new IOException("Index does not match factors");
+        }
+
+        HnswIndex index = new HnswIndex();
+        index.init(n, in.getInt(), in.getInt(), in.getInt());
+        index.factors = factors;
+        index.norms = norms;
+        index.entryPoint = in.getInt();
+        index.maxLevel = in.getInt();
+        index.innerProduct = in.getByte() != 0;
+        index.maxNorm = in.getFloat();
+        index.levels = in.getBytes(n);
+        for (int i = 0; i < index.links.length; i++) {
+            index.links[i] = in.getInt();
+        }
+        for (int i = 0; i < n; i++) {
+            if (index.levels[i] > 0) {
+                index.upperLinks[i] = in.getInts(index.levels[i] * (index.m + 1));
+            }
+        }
+        return index;
+    }
+
+    private void insert(int q, Search search) {
+        float[] query = search.query;
+        this.factors.getRow(q, query);
+        float queryExtra = extra(q);
+        if (!this.innerProduct) {
+            float scale = inverseNorm(q);
+            for (int i = 0; i < query.length; i++) {
+                query[i] *= scale;
+            }
+        }
+
+        int level = this.levels[q];
+        int entry;
+        int top;
+        synchronized (this) {
+            entry = this.entryPoint;
+            top = this.maxLevel;
+        }
+
+        for (int l = top; l > level; l--) {
+            entry = greedy(query, queryExtra, entry, l, search);
+        }
+
+        for (int l = Math.min(level, top); l >= 0; l--) {
+            int size = searchLayer(query, queryExtra, entry, this.efConstruction, l, search);
+            int[] ids = search.ids;
+            float[] scores = search.scores;
+            TopK.sort(ids, scores, size);
+            entry = ids[0];
+
+            int count = selectNeighbors(q, ids, scores, size, this.m, search.selected);
+            int[] selected = search.selected;
+            synchronized (lock(q)) {
+                int[] data = linkArray(q, l);
+                int offset = linkOffset(q, l);
+                data[offset] = count;
+                System.arraycopy(selected, 0, data, offset + 1, count);
+            }
+
+            int maxM = l == 0 ? this.maxM0 : this.m;
+            for (int j = 0; j < count; j++) {
+                addLink(selected[j], q, l, maxM, search);
+            }
+        }
+
+        synchronized (this) {
+            if (level > this.maxLevel) {
+                this.maxLevel = level;
+                this.entryPoint = q;
+            }
+        }
+    }
+
+    // adds a link from node to q, pruning the links of node if it is full
+    private void addLink(int node, int q, int level, int maxM, Search search) {
+        synchronized (lock(node)) {
+            int[] data = linkArray(node, level);
+            int offset = linkOffset(node, level);
+            int count = data[offset];
+            for (int j = 0; j < count; j++) {
+                if (data[offset + 1 + j] == q) {
+                    return;
+                }
+            }
+
+            if (count < maxM) {
+                data[offset + 1 + count] = q;
+                data[offset] = count + 1;
+                return;
+            }
+
+            int[] ids = search.pruneIds;
+            float[] scores = search.pruneScores;
+            int size = 0;
+            for (int j = 0; j < count; j++) {
+                size = TopK.push(ids, scores, size, maxM + 1, data[offset + 1 + j], similarity(node, data[offset + 1 + j]));
+            }
+            size = TopK.push(ids, scores, size, maxM + 1, q, similarity(node, q));
+            TopK.sort(ids, scores, size);
+
+            count = selectNeighbors(node, ids, scores, size, maxM, search.pruned);
+            data[offset] = count;
+            System.arraycopy(search.pruned, 0, data, offset + 1, count);
+        }
+    }
+
+    // keeps a candidate only if it is closer to the query than to every kept candidate
+    // which spreads links in different directions (algorithm 4)
+    private int selectNeighbors(int q, int[] ids, float[] scores, int size, int max, int[] selected) {
+        int count = 0;
+        for (int j = 0; j < size && count < max; j++) {
+            if (ids[j] == q) {
+                continue;
+            }
+            boolean good = true;
+            for (int k = 0; k < count; k++) {
+                if (similarity(ids[j], selected[k]) > scores[j]) {
+                    good = false;
+                    break;
+                }
+            }
+            if (good) {
+                selected[count++] = ids[j];
+            }
+        }
+        return count;
+    }
+
+    private int greedy(float[] query, float queryExtra, int entry, int level, Search search) {
+        float best = score(entry, query, queryExtra);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int count = neighbors(entry, level, search.neighbors);
+            for (int j = 0; j < count; j++) {
+                int node = search.neighbors[j];
+                float score = score(node, query, queryExtra);
+                if (score > best) {
+                    best = score;
+                    entry = node;
+                    changed = true;
+                }
+            }
+        }
+        return entry;
+    }
+
+    // leaves the ef best nodes found in search.ids and search.scores as a TopK heap
+    private int searchLayer(float[] query, float queryExtra, int entry, int ef, int level, Search search) {
+        search.reserve(ef);
+        int[] ids = search.ids;
+        float[] scores = search.scores;
+        Candidates candidates = search.candidates;
+        IntSet visited = search.visited;
+        candidates.clear();
+        visited.clear();
+
+        float entryScore = score(entry, query, queryExtra);
+        visited.add(entry);
+        candidates.push(entry, entryScore);
+        int size = TopK.push(ids, scores, 0, ef, entry, entryScore);
+
+        while (candidates.size() > 0) {
+            if (size == ef && candidates.topScore() < scores[0]) {
+                break;
+            }
+            int c = candidates.pop();
+
+            int count = neighbors(c, level, search.neighbors);
+            for (int j = 0; j < count; j++) {
+                int node = search.neighbors[j];
+                if (!visited.add(node)) {
+                    continue;
+                }
+                float score = score(node, query, queryExtra);
+                if (size < ef || score > scores[0]) {
+                    candidates.push(node, score);
+                    size = TopK.push(ids, scores, size, ef, node, score);
+                }
+            }
+        }
+        return size;
+    }
+
+    private int neighbors(int node, int level, int[] dst) {
+        int[] data = linkArray(node, level);
+        int offset = linkOffset(node, level);
+        if (this.locks != null) {
+            synchronized (lock(node)) {
+                int count = data[offset];
+                System.arraycopy(data, offset + 1, dst, 0, count);
+                return count;
+            }
+        }
+        int count = data[offset];
+        System.arraycopy(data, offset + 1, dst, 0, count);
+        return count;
+    }
+
+    private int[] linkArray(int node, int level) {
+        return level == 0 ? this.links : this.upperLinks[node];
+    }
+
+    private int linkOffset(int node, int level) {
+        return level == 0 ? node * (this.maxM0 + 1) : (level - 1) * (this.m + 1);
+    }
+
+    private Object lock(int node) {
+        return this.locks[node & (LOCKS - 1)];
+    }
+
+    // the query is a unit-length vector for cosine, with queryExtra in the extra dimension for inner product
+    private float score(int row, float[] query, float queryExtra) {
+        if (this.innerProduct) {
+            return this.factors.dot(row, query) + queryExtra * extra(row);
+        }
+        return this.factors.dot(row, query) * inverseNorm(row);
+    }
+
+    private float similarity(int a, int b) {
+        if (this.innerProduct) {
+            return this.factors.dot(a, this.factors, b) + extra(a) * extra(b);
+        }
+        return this.factors.dot(a, this.factors, b) * inverseNorm(a) * inverseNorm(b);
+    }
+
+    // the extra dimension that brings a row to the max norm
+    private float extra(int row) {
+        if (!this.innerProduct) {
+            return 0.0f;
+        }
+        float norm = this.norms.get(row, 0);
+        return (float) Math.sqrt(Math.max(this.maxNorm * this.maxNorm - norm * norm, 0.0f));
+    }
+
+    private float inverseNorm(int row) {
+        float norm = this.norms.get(row, 0);
+        return norm > 0.0f ? 1.0f / norm : 0.0f;
+    }
+
+    /**
+     * Scratch space for a search, reused across inserts on the same thread.
+     */
+    private class Search {
+        float[] query;
+        int[] ids;
+        float[] scores;
+        int[] neighbors;
+        int[] selected;
+        int[] pruned;
+        int[] pruneIds;
+        float[] pruneScores;
+        Candidates candidates;
+        IntSet visited;
+
+        Search(int dimensions) {
+            this.query = new float[dimensions];
+            this.ids = new int[0];
+            this.scores = new float[0];
+            this.neighbors = new int[HnswIndex.this.maxM0];
+            this.selected = new int[HnswIndex.this.maxM0];
+            this.pruned = new int[HnswIndex.this.maxM0];
+            this.pruneIds = new int[HnswIndex.this.maxM0 + 1];
+            this.pruneScores = new float[HnswIndex.this.maxM0 + 1];
+            this.candidates = new Candidates();
+            this.visited = new IntSet();
+        }
+
+        void reserve(int ef) {
+            if (this.ids.length < ef) {
+                this.ids = new int[ef];
+                this.scores = new float[ef];
+            }
+        }
+    }
+
+    /**
+     * A max-heap of nodes to visit.
+     */
+    private static class Candidates {
+        private int[] ids = new int[64];
+        private float[] scores = new float[64];
+        private int size;
+
+        int size() {
+            return this.size;
+        }
+
+        void clear() {
+            this.size = 0;
+        }
+
+        float topScore() {
+            return this.scores[0];
+        }
+
+        void push(int id, float score) {
+            if (this.size == this.ids.length) {
+                this.ids = Arrays.copyOf(this.ids, this.size * 2);
+                this.scores = Arrays.copyOf(this.scores, this.size * 2);
+            }
+            int i = this.size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (this.scores[parent] >= score) {
+                    break;
+                }
+                this.ids[i] = this.ids[parent];
+                this.scores[i] = this.scores[parent];
+                i = parent;
+            }
+            this.ids[i] = id;
+            this.scores[i] = score;
+        }
+
+        int pop() {
+            int top = this.ids[0];
+            int id = this.ids[--this.size];
+            float score = this.scores[this.size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= this.size) {
+                    break;
+                }
+                if (child + 1 < this.size && this.scores[child + 1] > this.scores[child]) {
+                    child++;
+                }
+                if (score >= this.scores[child]) {
+                    break;
+                }
+                this.ids[i] = this.ids[child];
+                this.scores[i] = this.scores[child];
+                i = child;
+            }
+            this.ids[i] = id;
+            this.scores[i] = score;
+            return top;
+        }
+    }
+
+    /**
+     * A set of visited nodes with open addressing.
+     */
+    private static class IntSet {
+        // slots hold node + 1, so 0 is empty
+        private int[] slots = new int[256];
+        private int size;
+
+        void clear() {
+            Arrays.fill(this.slots, 0);
+            this.size = 0;
+        }
+
+        /**
+         * Adds a node and returns false if it was already present.
+         */
+        boolean add(int node) {
+            if (2 * (this.size + 1) > this.slots.length) {
+                grow();
+            }
+            int mask = this.slots.length - 1;
+            int i = mix(node) & mask;
+            while (this.slots[i] != 0) {
+                if (this.slots[i] == node + 1) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            this.slots[i] = node + 1;
+            this.size++;
+            return true;
+        }
+
+        private void grow() {
+            int[] old = this.slots;
+            this.slots = new int[old.length * 2];
+            int mask = this.slots.length - 1;
+            for (int slot : old) {
+                if (slot != 0) {
+                    int i = mix(slot - 1) & mask;
+                    while (this.slots[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    this.slots[i] = slot;
+                }
+            }
+        }
+
+        private static int mix(int x) {
+            x *= 0x9e3779b9;
+            return x ^ (x >>> 16);
+        }
+    }
+}
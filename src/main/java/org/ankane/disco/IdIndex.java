@@ -0,0 +1,105 @@
+package org.ankane.disco;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing hash index from ids to dense indices.
+ *
+ * <p>Ids are stored by index in subclasses, and the table only holds indices,
+ * so there are no entry objects or boxed values.
+ */
+abstract class IdIndex {
+    // linear probing, with index + 1 in each slot and 0 for empty
+    int[] slots;
+    int size;
+
+    IdIndex() {
+        this.slots = new int[16];
+        this.size = 0;
+    }
+
+    /**
+     * Returns whether the id can be stored in this index.
+     */
+    abstract boolean accepts(Object id);
+
+    /**
+     * Adds an id that this index accepts and returns its index.
+     */
+    abstract int add(Object id);
+
+    /**
+     * Returns the index of an id, or -1 if it's not present.
+     */
+    abstract int get(Object id);
+
+    abstract Object lookup(int index);
+
+    abstract IdIndex copy();
+
+    /**
+     * Returns the hash of the id at an index.
+     */
+    abstract int hashAt(int index);
+
+    int size() {
+        return this.size;
+    }
+
+    static IdIndex create(Object id) {
+        if (id instanceof Integer) {
+            return new IntIdIndex();
+        } else if (id instanceof Long) {
+            return new LongIdIndex();
+        } else if (id instanceof String && StringIdIndex.isLatin1((String) id)) {
+            return new StringIdIndex();
+        } else {
+            return new ObjectIdIndex();
+        }
+    }
+
+    /**
+     * Inserts the id already stored at the next index and returns the index.
+     */
+    int insert(int hash) {
+        if ((this.size + 1) * 4L > this.slots.length * 3L) {
+            rehash(this.slots.length * 2);
+        }
+        place(this.slots, hash, this.size);
+        return this.size++;
+    }
+
+    void copyTo(IdIndex other) {
+        other.slots = Arrays.copyOf(this.slots, this.slots.length);
+        other.size = this.size;
+    }
+
+    static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    static int grow(int length) {
+        return (int) Math.min(Math.max(length + (length >> 1), 16L), Integer.MAX_VALUE - 8);
+    }
+
+    private void rehash(int capacity) {
+        if (capacity < 0) {
+            throw new OutOfMemoryError("Too many ids");
+        }
+        int[] slots = new int[capacity];
+        for (int i = 0; i < this.size; i++) {
+            place(slots, hashAt(i), i);
+        }
+        this.slots = slots;
+    }
+
+    private static void place(int[] slots, int hash, int index) {
+        int mask = slots.length - 1;
+        int s = hash & mask;
+        while (slots[s] != 0) {
+            s = (s + 1) & mask;
+        }
+        slots[s] = index + 1;
+    }
+}
@@ -1,45 +1,144 @@
 package org.ankane.disco;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
 import java.util.List;
-import java.util.Map;
-import java.util.Optional;
+import java.util.RandomAccess;
 
+/**
+ * A map from ids to dense indices.
+ *
+ * <p>Integer, Long, and Latin-1 String ids use specialized indices that store ids in primitive arrays.
+ * If an id of another type is added, the map switches to an index for any hashable type.
+ */
 class IdMap<T> {
-    private Map<T, Integer> map;
-    private List<T> vec;
+    private static final byte EMPTY = 0;
+    private static final byte INT = 1;
+    private static final byte LONG = 2;
+    private static final byte STRING = 3;
+
+    private IdIndex index;
 
     IdMap() {
-        this.map = new HashMap<>();
-        this.vec = new ArrayList<>();
+        this.index = null;
+    }
+
+    /**
+     * Returns a copy that can be changed independently.
+     */
+    public IdMap<T> copy() {
+        IdMap<T> copy = new IdMap<>();
+        copy.index = this.index == null ? null : this.index.copy();
+        return copy;
     }
 
     public int add(T id) {
-        int v = this.vec.size();
-        Integer i = this.map.putIfAbsent(id, v);
-        if (i == null) {
-            this.vec.add(id);
-            return v;
-        } else {
-            return i;
+        if (this.index == null) {
+            this.index = IdIndex.create(id);
+        } else if (!this.index.accepts(id)) {
+            this.index = new ObjectIdIndex(this.index);
         }
+        return this.index.add(id);
     }
 
-    public Optional<Integer> get(T id) {
-        return Optional.ofNullable(this.map.get(id));
+    /**
+     * Returns the index of an id, or -1 if it's not present.
+     */
+    public int get(T id) {
+        return this.index == null ? -1 : this.index.get(id);
     }
 
+    @SuppressWarnings("unchecked")
     public T lookup(int index) {
-        return this.vec.get(index);
+        return (T) this.index.lookup(index);
     }
 
     public int size() {
-        return this.vec.size();
+        return this.index == null ? 0 : this.index.size();
     }
 
     public List<T> ids() {
-        return Collections.unmodifiableList(this.vec);
+        return new Ids();
+    }
+
+    /**
+     * Writes the ids in order. Only Integer, Long, and String ids are supported.
+     */
+    void write(ModelFile.Writer out) throws IOException {
+        int size = size();
+        byte type = EMPTY;
+        if (size > 0) {
+            type = idType(lookup(0));
+            for (int i = 1; i < size; i++) {
+                if (idType(lookup(i)) != type) {
+                    throw new UnsupportedOperationException("Ids must all have the same type to save");
+                }
+            }
+        }
+
+        out.putByte(type);
+        out.putInt(size);
+        for (int i = 0; i < size; i++) {
+            Object id = lookup(i);
+            if (type == INT) {
+                out.putInt((Integer) id);
+            } else if (type == LONG) {
+                out.putLong((Long) id);
+            } else {
+                byte[] bytes = ((String) id).getBytes(StandardCharsets.UTF_8);
+                out.putInt(bytes.length);
+                out.putBytes(bytes);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> IdMap<T> read(ModelFile.Reader in) throws IOException {
+        byte type = in.getByte();
+        int size = in.getInt();
+        IdMap<T> map = new IdMap<>();
+        for (int i = 0; i < size; i++) {
+            Object id;
+            if (type == INT) {
+                id = in.getInt();
+            } else if (type == LONG) {
+                id = in.getLong();
+            } else if (type == STRING) {
+                id = new String(in.getBytes(in.getInt()), StandardCharsets.UTF_8);
+            } else {
+                throw new IOException("Invalid id type: " + type);
+            }
+            map.add((T) id);
+        }
+        return map;
+    }
+
+    private static byte idType(Object id) {
+        if (id instanceof Integer) {
+            return INT;
+        } else if (id instanceof Long) {
+            return LONG;
+        } else if (id instanceof String) {
+            return STRING;
+        } else {
+            String name = id == null ? "null" : id.getClass().getName();
+            throw new UnsupportedOperationException("Unsupported id type to save: " + name);
+        }
+    }
+
+    private class Ids extends AbstractList<T> implements RandomAccess {
+        @Override
+        public T get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index);
+            }
+            return lookup(index);
+        }
+
+        @Override
+        public int size() {
+            return IdMap.this.size();
+        }
     }
 }
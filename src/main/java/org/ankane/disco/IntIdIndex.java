@@ -0,0 +1,68 @@
+package org.ankane.disco;
+
+import java.util.Arrays;
+
+/**
+ * An id index for int ids.
+ */
+class IntIdIndex extends IdIndex {
+    private int[] keys;
+
+    IntIdIndex() {
+        this.keys = new int[16];
+    }
+
+    boolean accepts(Object id) {
+        return id instanceof Integer;
+    }
+
+    int add(Object id) {
+        int key = (Integer) id;
+        int i = find(key);
+        if (i >= 0) {
+            return i;
+        }
+        if (this.size == this.keys.length) {
+            this.keys = Arrays.copyOf(this.keys, grow(this.keys.length));
+        }
+        this.keys[this.size] = key;
+        return insert(hash(key));
+    }
+
+    int get(Object id) {
+        return id instanceof Integer ? find((Integer) id) : -1;
+    }
+
+    Object lookup(int index) {
+        return this.keys[index];
+    }
+
+    IdIndex copy() {
+        IntIdIndex copy = new IntIdIndex();
+        copyTo(copy);
+        copy.keys = Arrays.copyOf(this.keys, this.size);
+        return copy;
+    }
+
+    int hashAt(int index) {
+        return hash(this.keys[index]);
+    }
+
+    private int find(int key) {
+        int[] slots = this.slots;
+        int mask = slots.length - 1;
+        int s = hash(key) & mask;
+        int v;
+        while ((v = slots[s]) != 0) {
+            if (this.keys[v - 1] == key) {
+                return v - 1;
+            }
+            s = (s + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int hash(int key) {
+        return mix(key);
+    }
+}
@@ -0,0 +1,42 @@
+package org.ankane.disco;
+
+import java.nio.FloatBuffer;
+
+/**
+ * The dot products and scaled adds used by training and scoring.
+ *
+ * <p>On Java 21 and later, the multi-release jar replaces this class with one
+ * that uses the Vector API when the jdk.incubator.vector module is added.
+ * Either way, every dot product of the same length is summed in the same
+ * order, so kernels for several rows or for buffers return the same results
+ * as {@link #dot(float[], int, float[], int, int)}.
+ */
+class Kernels {
+    private Kernels() {}
+
+    /**
+     * Returns whether the Vector API is used.
+     */
+    static boolean vectorized() {
+        return false;
+    }
+
+    static float dot(float[] a, int aOffset, float[] b, int bOffset, int n) {
+        return ScalarKernels.dot(a, aOffset, b, bOffset, n);
+    }
+
+    static float dot(FloatBuffer a, int aOffset, float[] b, int bOffset, int n) {
+        return ScalarKernels.dot(a, aOffset, b, bOffset, n);
+    }
+
+    /**
+     * Fills out with the dot products of x and four rows of a, which start at aOffset and are stride apart.
+     */
+    static void dot4(float[] x, int xOffset, float[] a, int aOffset, int stride, int n, float[] out) {
+        ScalarKernels.dot4(x, xOffset, a, aOffset, stride, n, out);
+    }
+
+    static void scaledAdd(float[] x, int xOffset, float a, float[] v, int vOffset, int n) {
+        ScalarKernels.scaledAdd(x, xOffset, a, v, vOffset, n);
+    }
+}
@@ -0,0 +1,68 @@
+package org.ankane.disco;
+
+import java.util.Arrays;
+
+/**
+ * An id index for long ids.
+ */
+class LongIdIndex extends IdIndex {
+    private long[] keys;
+
+    LongIdIndex() {
+        this.keys = new long[16];
+    }
+
+    boolean accepts(Object id) {
+        return id instanceof Long;
+    }
+
+    int add(Object id) {
+        long key = (Long) id;
+        int i = find(key);
+        if (i >= 0) {
+            return i;
+        }
+        if (this.size == this.keys.length) {
+            this.keys = Arrays.copyOf(this.keys, grow(this.keys.length));
+        }
+        this.keys[this.size] = key;
+        return insert(hash(key));
+    }
+
+    int get(Object id) {
+        return id instanceof Long ? find((Long) id) : -1;
+    }
+
+    Object lookup(int index) {
+        return this.keys[index];
+    }
+
+    IdIndex copy() {
+        LongIdIndex copy = new LongIdIndex();
+        copyTo(copy);
+        copy.keys = Arrays.copyOf(this.keys, this.size);
+        return copy;
+    }
+
+    int hashAt(int index) {
+        return hash(this.keys[index]);
+    }
+
+    private int find(long key) {
+        int[] slots = this.slots;
+        int mask = slots.length - 1;
+        int s = hash(key) & mask;
+        int v;
+        while ((v = slots[s]) != 0) {
+            if (this.keys[v - 1] == key) {
+                return v - 1;
+            }
+            s = (s + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int hash(long key) {
+        return mix((int) (key ^ (key >>> 32)));
+    }
+}
@@ -0,0 +1,133 @@
+package org.ankane.disco;
+
+/**
+ * A dense row-major matrix.
+ *
+ * <p>Rows are stored back to back with a stride of cols. Large matrices are
+ * split into segments that each hold a power of two rows, so a row is
+ * addressed by its segment and offset.
+ */
+abstract class Matrix {
+    private int rows;
+    private int cols;
+    private int shift;
+    private int mask;
+
+    Matrix(int rows, int cols, int maxSegmentSize) {
+        if (cols > maxSegmentSize) {
+            throw new IllegalArgumentException("Too many columns");
+        }
+
+        this.rows = rows;
+        this.cols = cols;
+        this.shift = segmentShift(cols, maxSegmentSize);
+        this.mask = (1 << this.shift) - 1;
+    }
+
+    /**
+     * Returns the log2 of the number of rows per segment.
+     */
+    static int segmentShift(int cols, int maxSegmentSize) {
+        return 31 - Integer.numberOfLeadingZeros(maxSegmentSize / Math.max(cols, 1));
+    }
+
+    int rows() {
+        return this.rows;
+    }
+
+    int cols() {
+        return this.cols;
+    }
+
+    int segmentRows() {
+        return 1 << this.shift;
+    }
+
+    int segments() {
+        int segmentRows = segmentRows();
+        return this.rows / segmentRows + (this.rows % segmentRows == 0 ? 0 : 1);
+    }
+
+    /**
+     * Returns the number of elements in a segment.
+     */
+    int segmentSize(int segment) {
+        return Math.min(segmentRows(), this.rows - segment * segmentRows()) * this.cols;
+    }
+
+    int segment(int row) {
+        return row >>> this.shift;
+    }
+
+    /**
+     * Returns the offset of a row in its segment.
+     */
+    int offset(int row) {
+        return (row & this.mask) * this.cols;
+    }
+
+    abstract float get(int row, int col);
+
+    abstract void set(int row, int col, float value);
+
+    /**
+     * Copies a row into the first cols elements of dst.
+     */
+    abstract void getRow(int row, float[] dst);
+
+    /**
+     * Copies the first cols elements of src into a row.
+     */
+    abstract void setRow(int row, float[] src);
+
+    /**
+     * Returns the dot product of a row and the first cols elements of x.
+     */
+    abstract float dot(int row, float[] x);
+
+    /**
+     * Returns the dot product of columns [start, end) of a row and the same elements of x.
+     */
+    abstract float dot(int row, float[] x, int start, int end);
+
+    /**
+     * Fills out with the dot products of four rows starting at row and the first cols elements of x.
+     */
+    void dot4(int row, float[] x, float[] out) {
+        for (int k = 0; k < 4; k++) {
+            out[k] = dot(row + k, x);
+        }
+    }
+
+    /**
+     * Adds a times a row to the first cols elements of x.
+     */
+    abstract void addRowTo(int row, float a, float[] x);
+
+    /**
+     * Returns the dot product of a row and a row of another matrix.
+     */
+    float dot(int row, Matrix other, int otherRow) {
+        float sum = 0.0f;
+        for (int i = 0; i < this.cols; i++) {
+            sum += get(row, i) * other.get(otherRow, i);
+        }
+        return sum;
+    }
+
+    /**
+     * Returns whether the matrix can't be changed, like a memory-mapped file.
+     */
+    boolean readOnly() {
+        return false;
+    }
+
+    /**
+     * Returns a copy of a row.
+     */
+    float[] row(int row) {
+        float[] v = new float[this.cols];
+        getRow(row, v);
+        return v;
+    }
+}
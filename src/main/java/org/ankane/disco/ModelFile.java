@@ -0,0 +1,363 @@
+package org.ankane.disco;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The binary model format.
+ *
+ * <p>A file starts with a magic number and version, followed by sections that
+ * each have a tag and a length, and ends with a section with tag 0. Readers
+ * skip sections with unknown tags. All values are little-endian, and matrix
+ * data is aligned to 64 bytes so it can be memory-mapped and used in place.
+ */
+class ModelFile {
+    static final long MAGIC = 0x4c444f4d4f435344L; // DSCOMODL
+    static final int VERSION = 1;
+
+    static final int END = 0;
+    static final int METADATA = 1;
+    static final int USER_IDS = 2;
+    static final int ITEM_IDS = 3;
+    static final int RATED = 4;
+    static final int USER_FACTORS = 5;
+    static final int ITEM_FACTORS = 6;
+    static final int USER_NORMS = 7;
+    static final int ITEM_NORMS = 8;
+    static final int USER_INDEX = 9;
+    static final int ITEM_INDEX = 10;
+    static final int USER_RECS_INDEX = 11;
+    static final int NORM_BOUNDS = 12;
+    static final int ITEM_NEIGHBORS = 13;
+    static final int FIT_OPTIONS = 14;
+    static final int FOLDED_USERS = 15;
+    static final int FOLDED_ITEMS = 16;
+    static final int LEARNER = 17;
+
+    private static final int ALIGNMENT = 64;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private ModelFile() {}
+
+    /**
+     * Writes a model file.
+     */
+    static class Writer implements Closeable {
+        private FileChannel channel;
+        private ByteBuffer buffer;
+        private long sectionStart;
+
+        Writer(Path path) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            this.buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            this.sectionStart = -1;
+
+            putLong(MAGIC);
+            putInt(VERSION);
+        }
+
+        void beginSection(int tag) throws IOException {
+            putInt(tag);
+            putLong(0);
+            this.sectionStart = position();
+        }
+
+        void endSection() throws IOException {
+            flush();
+            long length = position() - this.sectionStart;
+            ByteBuffer b = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            b.putLong(length).flip();
+            long position = this.sectionStart - 8;
+            while (b.hasRemaining()) {
+                position += this.channel.write(b, position);
+            }
+            this.sectionStart = -1;
+        }
+
+        void putByte(byte value) throws IOException {
+            ensure(1);
+            this.buffer.put(value);
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            this.buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(8);
+            this.buffer.putLong(value);
+        }
+
+        void putFloat(float value) throws IOException {
+            ensure(4);
+            this.buffer.putFloat(value);
+        }
+
+        void putBytes(byte[] values) throws IOException {
+            int n = 0;
+            while (n < values.length) {
+                ensure(1);
+                int len = Math.min(this.buffer.remaining(), values.length - n);
+                this.buffer.put(values, n, len);
+                n += len;
+            }
+        }
+
+        void putInts(int[] values, int offset, int length) throws IOException {
+            for (int i = offset; i < offset + length; i++) {
+                putInt(values[i]);
+            }
+        }
+
+        void putLongs(long[] values) throws IOException {
+            for (long v : values) {
+                putLong(v);
+            }
+        }
+
+        void putFloats(float[] values, int offset, int length) throws IOException {
+            int n = 0;
+            while (n < length) {
+                ensure(4);
+                int len = Math.min(this.buffer.remaining() / 4, length - n);
+                this.buffer.asFloatBuffer().put(values, offset + n, len);
+                this.buffer.position(this.buffer.position() + len * 4);
+                n += len;
+            }
+        }
+
+        /**
+         * Writes the dimensions and then rows starting at an aligned position.
+         */
+        void putMatrix(Matrix m) throws IOException {
+            putInt(m.rows());
+            putInt(m.cols());
+            while (position() % ALIGNMENT != 0) {
+                putByte((byte) 0);
+            }
+
+            float[] row = new float[m.cols()];
+            for (int i = 0; i < m.rows(); i++) {
+                m.getRow(i, row);
+                putFloats(row, 0, row.length);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                beginSection(END);
+                endSection();
+            } finally {
+                this.channel.close();
+            }
+        }
+
+        private long position() throws IOException {
+            return this.channel.position() + this.buffer.position();
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (this.buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            this.buffer.flip();
+            while (this.buffer.hasRemaining()) {
+                this.channel.write(this.buffer);
+            }
+            this.buffer.clear();
+        }
+    }
+
+    /**
+     * Reads a model file.
+     */
+    static class Reader implements Closeable {
+        private FileChannel channel;
+        private ByteBuffer buffer;
+        // file position of the start of the buffer
+        private long bufferStart;
+        private long sectionEnd;
+        private boolean mapped;
+
+        /**
+         * Opens a file. If mapped is true, matrices are memory-mapped instead of read onto the heap.
+         */
+        Reader(Path path, boolean mapped) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            this.buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            this.buffer.limit(0);
+            this.bufferStart = 0;
+            this.sectionEnd = -1;
+            this.mapped = mapped;
+
+            try {
+                if (this.channel.size() < 12 || getLong() != MAGIC) {
+                    throw new IOException("Invalid model file");
+                }
+                int version = getInt();
+                if (version > VERSION) {
+                    throw new IOException("Unsupported model version: " + version);
+                }
+            } catch (IOException e) {
+                this.channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Reads the tag of the next section. Use {@link #skipSection()} to skip its contents.
+         */
+        int nextSection() throws IOException {
+            int tag = getInt();
+            long length = getLong();
+            this.sectionEnd = position() + length;
+            return tag;
+        }
+
+        void skipSection() throws IOException {
+            seek(this.sectionEnd);
+        }
+
+        byte getByte() throws IOException {
+            require(1);
+            return this.buffer.get();
+        }
+
+        int getInt() throws IOException {
+            require(4);
+            return this.buffer.getInt();
+        }
+
+        long getLong() throws IOException {
+            require(8);
+            return this.buffer.getLong();
+        }
+
+        float getFloat() throws IOException {
+            require(4);
+            return this.buffer.getFloat();
+        }
+
+        byte[] getBytes(int length) throws IOException {
+            byte[] values = new byte[length];
+            int n = 0;
+            while (n < length) {
+                require(1);
+                int len = Math.min(this.buffer.remaining(), length - n);
+                this.buffer.get(values, n, len);
+                n += len;
+            }
+            return values;
+        }
+
+        int[] getInts(int length) throws IOException {
+            int[] values = new int[length];
+            for (int i = 0; i < length; i++) {
+                values[i] = getInt();
+            }
+            return values;
+        }
+
+        long[] getLongs(int length) throws IOException {
+            long[] values = new long[length];
+            for (int i = 0; i < length; i++) {
+                values[i] = getLong();
+            }
+            return values;
+        }
+
+        void getFloats(float[] values, int offset, int length) throws IOException {
+            int n = 0;
+            while (n < length) {
+                require(4);
+                int len = Math.min(this.buffer.remaining() / 4, length - n);
+                this.buffer.asFloatBuffer().get(values, offset + n, len);
+                this.buffer.position(this.buffer.position() + len * 4);
+                n += len;
+            }
+        }
+
+        /**
+         * Reads a matrix written by {@link Writer#putMatrix(Matrix)}.
+         */
+        Matrix getMatrix() throws IOException {
+            int rows = getInt();
+            int cols = getInt();
+            while (position() % ALIGNMENT != 0) {
+                getByte();
+            }
+
+            if (this.mapped) {
+                // segments are mapped separately to stay under the 2 GB limit per mapping
+                int segmentRows = BufferMatrix.segmentRows(cols);
+                FloatBuffer[] segments = new FloatBuffer[rows / segmentRows + (rows % segmentRows == 0 ? 0 : 1)];
+                long position = position();
+                for (int s = 0; s < segments.length; s++) {
+                    long bytes = 4L * Math.min(segmentRows, rows - s * segmentRows) * cols;
+                    if (position + bytes > this.channel.size()) {
+                        throw new IOException("Truncated model file");
+                    }
+                    segments[s] = this.channel.map(FileChannel.MapMode.READ_ONLY, position, bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+                    position += bytes;
+                }
+                seek(position);
+                return new BufferMatrix(rows, cols, segments);
+            }
+
+            HeapMatrix m = new HeapMatrix(rows, cols);
+            for (int s = 0; s < m.segments(); s++) {
+                int row = s * m.segmentRows();
+                getFloats(m.data(row), 0, m.segmentSize(s));
+            }
+            return m;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+
+        private long position() {
+            return this.bufferStart + this.buffer.position();
+        }
+
+        private void seek(long position) throws IOException {
+            if (position >= this.bufferStart && position <= this.bufferStart + this.buffer.limit()) {
+                this.buffer.position((int) (position - this.bufferStart));
+            } else {
+                this.channel.position(position);
+                this.bufferStart = position;
+                this.buffer.clear();
+                this.buffer.limit(0);
+            }
+        }
+
+        private void require(int bytes) throws IOException {
+            if (this.buffer.remaining() >= bytes) {
+                return;
+            }
+
+            // the channel is always positioned at the end of the buffered bytes
+            long start = this.bufferStart + this.buffer.position();
+            this.buffer.compact();
+            while (this.buffer.position() < bytes) {
+                if (this.channel.read(this.buffer) < 0) {
+                    throw new IOException("Truncated model file");
+                }
+            }
+            this.buffer.flip();
+            this.bufferStart = start;
+        }
+    }
+}
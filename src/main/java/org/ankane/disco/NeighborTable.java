@@ -0,0 +1,89 @@
+package org.ankane.disco;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * The top neighbors of each row, stored in flat arrays.
+ *
+ * <p>Row i's neighbors are in [i * n, i * n + sizes[i]), sorted from best to worst.
+ */
+class NeighborTable {
+    /**
+     * Finds the neighbors of a row and returns the number found.
+     */
+    interface Query {
+        int similar(int i, int[] ids, float[] scores, int count);
+    }
+
+    private int n;
+    private int[] sizes;
+    private int[] ids;
+    private float[] scores;
+
+    NeighborTable(int rows, int n, int threads, Executor executor, Query query) {
+        if ((long) rows * n > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many neighbors");
+        }
+
+        this.n = n;
+        this.sizes = new int[rows];
+        this.ids = new int[rows * n];
+        this.scores = new float[rows * n];
+
+        Parallel.forRange(threads, executor, rows, 64, () -> {
+            int[] rowIds = new int[n];
+            float[] rowScores = new float[n];
+            return (start, end) -> {
+                for (int i = start; i < end; i++) {
+                    int size = query.similar(i, rowIds, rowScores, n);
+                    System.arraycopy(rowIds, 0, this.ids, i * n, size);
+                    System.arraycopy(rowScores, 0, this.scores, i * n, size);
+                    this.sizes[i] = size;
+                }
+            };
+        });
+    }
+
+    private NeighborTable(int n, int[] sizes, int[] ids, float[] scores) {
+        this.n = n;
+        this.sizes = sizes;
+        this.ids = ids;
+        this.scores = scores;
+    }
+
+    /**
+     * Returns the number of neighbors stored for each row.
+     */
+    int n() {
+        return this.n;
+    }
+
+    /**
+     * Copies up to count neighbors of a row and returns the number copied.
+     */
+    int get(int i, int[] ids, float[] scores, int count) {
+        int size = Math.min(count, this.sizes[i]);
+        System.arraycopy(this.ids, i * this.n, ids, 0, size);
+        System.arraycopy(this.scores, i * this.n, scores, 0, size);
+        return size;
+    }
+
+    void write(ModelFile.Writer out) throws IOException {
+        out.putInt(this.sizes.length);
+        out.putInt(this.n);
+        out.putInts(this.sizes, 0, this.sizes.length);
+        out.putInts(this.ids, 0, this.ids.length);
+        out.putFloats(this.scores, 0, this.scores.length);
+    }
+
+    static NeighborTable read(ModelFile.Reader in) throws IOException {
+        int rows = in.getInt();
+        int n = in.getInt();
+        int[] sizes = in.getInts(rows);
+        int[] ids = in.getInts(rows * n);
+        float[] scores = new float[rows * n];
+        in.getFloats(scores, 0, scores.length);
+        return new NeighborTable(n, sizes, ids, scores);
+    }
+}
@@ -0,0 +1,143 @@
+package org.ankane.disco;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Norm bounds for exact scans that skip rows.
+ *
+ * <p>By the Cauchy-Schwarz inequality, a dot product is at most the product
+ * of the norms. Items are kept in order of decreasing norm, so a userRecs
+ * scan can stop once that bound is below the worst score in its top results.
+ * Each row also has the norm of the columns after a prefix, so a row can be
+ * skipped after a dot product over the prefix.
+ *
+ * <p>Bounds are widened by a slack that covers float rounding, so results are
+ * the same as a full scan.
+ *
+ * <p>When online updates make an item's norm larger than its place in the
+ * order, all bounds from the order are scaled by the largest growth instead
+ * of sorting again.
+ */
+class NormBounds {
+    // items by decreasing norm, with their norms in the same order
+    int[] itemOrder;
+    float[] itemOrderNorms;
+    // norms of the columns after the prefix
+    Matrix userTails;
+    Matrix itemTails;
+    // at least the norm of each item divided by its norm in the order
+    volatile float growth;
+    // the place of each item in the order, built by the first update
+    private int[] positions;
+
+    NormBounds(Matrix userFactors, Matrix itemFactors, Matrix itemNorms, boolean offHeap) {
+        int items = itemNorms.rows();
+        long[] keys = new long[items];
+        for (int j = 0; j < items; j++) {
+            // bits of non-negative floats sort like the floats
+            keys[j] = ((long) Float.floatToIntBits(itemNorms.get(j, 0)) << 32) | j;
+        }
+        Arrays.sort(keys);
+        this.itemOrder = new int[items];
+        this.itemOrderNorms = new float[items];
+        for (int j = 0; j < items; j++) {
+            long key = keys[items - 1 - j];
+            this.itemOrder[j] = (int) key;
+            this.itemOrderNorms[j] = Float.intBitsToFloat((int) (key >>> 32));
+        }
+
+        this.userTails = tails(userFactors, offHeap);
+        this.itemTails = tails(itemFactors, offHeap);
+        this.growth = 1.0f;
+    }
+
+    private NormBounds(int[] itemOrder, float[] itemOrderNorms, Matrix userTails, Matrix itemTails, float growth) {
+        this.itemOrder = itemOrder;
+        this.itemOrderNorms = itemOrderNorms;
+        this.userTails = userTails;
+        this.itemTails = itemTails;
+        this.growth = growth;
+    }
+
+    /**
+     * Updates the tail of a user after its factors change.
+     */
+    void updateUser(int u, float[] factors) {
+        this.userTails.set(u, 0, tail(factors));
+    }
+
+    /**
+     * Updates the tail and growth of an item before its factors change.
+     */
+    synchronized void updateItem(int j, float[] factors, float norm) {
+        if (this.positions == null) {
+            this.positions = new int[this.itemOrder.length];
+            for (int n = 0; n < this.itemOrder.length; n++) {
+                this.positions[this.itemOrder[n]] = n;
+            }
+        }
+
+        // grow before the factors change so bounds stay valid
+        float orderNorm = this.itemOrderNorms[this.positions[j]];
+        if (norm > orderNorm * this.growth) {
+            // an item with a zero norm in the order can only be covered by sorting again
+            this.growth = orderNorm > 0.0f ? Math.nextUp(norm / orderNorm) : Float.POSITIVE_INFINITY;
+        }
+        this.itemTails.set(j, 0, tail(factors));
+    }
+
+    /**
+     * Returns the number of columns in the prefix, or 0 if rows are too short to split.
+     */
+    static int prefix(int cols) {
+        return cols >= 4 ? cols / 2 : 0;
+    }
+
+    /**
+     * Returns the relative slack for bounds.
+     */
+    static float slack(int cols) {
+        // error of a float dot product is at most about cols * 2^-24 relative to the product of norms
+        // with the same again for the norms
+        return 2 * (cols + 4) * Math.ulp(1.0f);
+    }
+
+    /**
+     * Returns the norm of the columns of x after the prefix.
+     */
+    static float tail(float[] x) {
+        int prefix = prefix(x.length);
+        return (float) Math.sqrt(Recommender.dot(x, prefix, x, prefix, x.length - prefix));
+    }
+
+    void write(ModelFile.Writer out) throws IOException {
+        out.putInt(this.itemOrder.length);
+        out.putInts(this.itemOrder, 0, this.itemOrder.length);
+        out.putFloats(this.itemOrderNorms, 0, this.itemOrderNorms.length);
+        out.putMatrix(this.userTails);
+        out.putMatrix(this.itemTails);
+        out.putFloat(this.growth);
+    }
+
+    static NormBounds read(ModelFile.Reader in) throws IOException {
+        int items = in.getInt();
+        int[] itemOrder = in.getInts(items);
+        float[] itemOrderNorms = new float[items];
+        in.getFloats(itemOrderNorms, 0, items);
+        Matrix userTails = in.getMatrix();
+        Matrix itemTails = in.getMatrix();
+        float growth = in.getFloat();
+        return new NormBounds(itemOrder, itemOrderNorms, userTails, itemTails, growth);
+    }
+
+    private static Matrix tails(Matrix factors, boolean offHeap) {
+        Matrix tails = Recommender.createMatrix(factors.rows(), 1, offHeap);
+        float[] row = new float[factors.cols()];
+        for (int i = 0; i < factors.rows(); i++) {
+            factors.getRow(i, row);
+            tails.set(i, 0, tail(row));
+        }
+        return tails;
+    }
+}
@@ -0,0 +1,80 @@
+package org.ankane.disco;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * An id index for any hashable ids.
+ */
+class ObjectIdIndex extends IdIndex {
+    private Object[] keys;
+    private int[] hashes;
+
+    ObjectIdIndex() {
+        this.keys = new Object[16];
+        this.hashes = new int[16];
+    }
+
+    /**
+     * Creates an index with the ids of another index in the same order.
+     */
+    ObjectIdIndex(IdIndex other) {
+        this();
+        for (int i = 0; i < other.size(); i++) {
+            add(other.lookup(i));
+        }
+    }
+
+    boolean accepts(Object id) {
+        return true;
+    }
+
+    int add(Object id) {
+        int hash = mix(Objects.hashCode(id));
+        int i = find(id, hash);
+        if (i >= 0) {
+            return i;
+        }
+        if (this.size == this.keys.length) {
+            this.keys = Arrays.copyOf(this.keys, grow(this.keys.length));
+            this.hashes = Arrays.copyOf(this.hashes, this.keys.length);
+        }
+        this.keys[this.size] = id;
+        this.hashes[this.size] = hash;
+        return insert(hash);
+    }
+
+    int get(Object id) {
+        return find(id, mix(Objects.hashCode(id)));
+    }
+
+    Object lookup(int index) {
+        return this.keys[index];
+    }
+
+    IdIndex copy() {
+        ObjectIdIndex copy = new ObjectIdIndex();
+        copyTo(copy);
+        copy.keys = Arrays.copyOf(this.keys, this.size);
+        copy.hashes = Arrays.copyOf(this.hashes, this.size);
+        return copy;
+    }
+
+    int hashAt(int index) {
+        return this.hashes[index];
+    }
+
+    private int find(Object key, int hash) {
+        int[] slots = this.slots;
+        int mask = slots.length - 1;
+        int s = hash & mask;
+        int v;
+        while ((v = slots[s]) != 0) {
+            if (this.hashes[v - 1] == hash && Objects.equals(this.keys[v - 1], key)) {
+                return v - 1;
+            }
+            s = (s + 1) & mask;
+        }
+        return -1;
+    }
+}
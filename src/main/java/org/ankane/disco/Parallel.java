@@ -0,0 +1,167 @@
+package org.ankane.disco;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Helpers for running work across threads.
+ */
+class Parallel {
+    /**
+     * A body that processes the half-open range [start, end).
+     */
+    interface RangeBody {
+        void accept(int start, int end);
+    }
+
+    private Parallel() {}
+
+    /**
+     * Runs a worker for each thread and waits for all of them to finish.
+     *
+     * <p>The first worker runs on the calling thread. Any exception thrown by a worker is rethrown.
+     */
+    static void run(int threads, IntConsumer worker) {
+        run(threads, null, worker);
+    }
+
+    /**
+     * Runs a worker for each thread on an executor, or on new threads if it's null, and waits for all of them to finish.
+     *
+     * <p>The first worker runs on the calling thread, and so does any worker the executor hasn't started by the time the calling thread is free, so a busy executor can't block the call. Workers must not wait for each other, since they can run one after another.
+     */
+    static void run(int threads, Executor executor, IntConsumer worker) {
+        if (threads <= 1) {
+            worker.accept(0);
+            return;
+        }
+
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        if (executor != null) {
+            runOn(executor, threads, worker, error);
+            rethrow(error.get());
+            return;
+        }
+
+        Thread[] pool = new Thread[threads - 1];
+        for (int t = 1; t < threads; t++) {
+            final int id = t;
+            pool[t - 1] = new Thread(() -> {
+                try {
+                    worker.accept(id);
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }, "disco-worker-" + t);
+            pool[t - 1].setDaemon(true);
+            pool[t - 1].start();
+        }
+
+        try {
+            worker.accept(0);
+        } catch (Throwable e) {
+            error.compareAndSet(null, e);
+        }
+
+        boolean interrupted = false;
+        for (Thread thread : pool) {
+            while (true) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        rethrow(error.get());
+    }
+
+    // workers are claimed by the executor's tasks and the calling thread, so each runs once
+    private static void runOn(Executor executor, int threads, IntConsumer worker, AtomicReference<Throwable> error) {
+        AtomicInteger next = new AtomicInteger(1);
+        CountDownLatch done = new CountDownLatch(threads - 1);
+        Runnable task = () -> {
+            int id;
+            while ((id = next.getAndIncrement()) < threads) {
+                try {
+                    worker.accept(id);
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+                done.countDown();
+            }
+        };
+        for (int t = 1; t < threads; t++) {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+
+        try {
+            worker.accept(0);
+        } catch (Throwable e) {
+            error.compareAndSet(null, e);
+        }
+        task.run();
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void rethrow(Throwable e) {
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        } else if (e != null) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Splits [0, n) into chunks of the given size and processes them across threads.
+     *
+     * <p>Each thread gets its own body from the supplier, so bodies can hold reusable scratch space.
+     */
+    static void forRange(int threads, int n, int grain, Supplier<RangeBody> bodies) {
+        forRange(threads, null, n, grain, bodies);
+    }
+
+    /**
+     * Splits [0, n) into chunks like {@link #forRange(int, int, int, Supplier)} and processes them on an executor.
+     */
+    static void forRange(int threads, Executor executor, int n, int grain, Supplier<RangeBody> bodies) {
+        int chunks = n / grain + (n % grain == 0 ? 0 : 1);
+        AtomicInteger next = new AtomicInteger();
+        run(Math.min(threads, Math.max(chunks, 1)), executor, (worker) -> {
+            RangeBody body = bodies.get();
+            int chunk;
+            while ((chunk = next.getAndIncrement()) < chunks) {
+                int start = chunk * grain;
+                body.accept(start, Math.min(start + grain, n));
+            }
+        });
+    }
+}
@@ -0,0 +1,247 @@
+package org.ankane.disco;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The items rated by each user.
+ *
+ * <p>Each user's items are stored as a sorted run in a shared array, like the
+ * indices of a CSR matrix. Users who rated more than 1/32 of items use a
+ * bitset instead, which takes no more space and tests in constant time.
+ *
+ * <p>Items added after fitting are kept in a separate sorted array per user,
+ * which is replaced when the user gets more items, so adding items costs the
+ * size of the changed users' arrays. Items are added in place, so callers
+ * publish the change to readers.
+ */
+class RatedItems {
+    // returned for users without added items, so callers don't need a null check
+    static final int[] NONE = new int[0];
+
+    // sorted items for user u are in [indptr[u], indptr[u + 1])
+    private int[] indptr;
+    private int[] indices;
+    // null for users without a bitset
+    private long[][] bitsets;
+    // sorted items added after fitting for user u, or null if none were added for anyone
+    private int[][] added;
+
+    RatedItems(int users, int items, int[] rowIndices, int[] colIndices, int size) {
+        int[] indptr = new int[users + 1];
+        int[] indices = new int[size];
+
+        // counting sort by user
+        for (int j = 0; j < size; j++) {
+            indptr[rowIndices[j] + 1]++;
+        }
+        for (int u = 0; u < users; u++) {
+            indptr[u + 1] += indptr[u];
+        }
+        int[] next = Arrays.copyOf(indptr, users);
+        for (int j = 0; j < size; j++) {
+            indices[next[rowIndices[j]]++] = colIndices[j];
+        }
+
+        // sort and remove duplicates in place
+        this.bitsets = new long[users][];
+        int n = 0;
+        int start = 0;
+        for (int u = 0; u < users; u++) {
+            int end = indptr[u + 1];
+            Arrays.sort(indices, start, end);
+
+            int rowStart = n;
+            for (int j = start; j < end; j++) {
+                if (j == start || indices[j] != indices[j - 1]) {
+                    indices[n++] = indices[j];
+                }
+            }
+
+            if (n - rowStart > items / 32) {
+                long[] bits = new long[(items + 63) >>> 6];
+                for (int j = rowStart; j < n; j++) {
+                    bits[indices[j] >>> 6] |= 1L << indices[j];
+                }
+                this.bitsets[u] = bits;
+                n = rowStart;
+            }
+
+            start = end;
+            indptr[u + 1] = n;
+        }
+
+        this.indptr = indptr;
+        this.indices = Arrays.copyOf(indices, n);
+    }
+
+    private RatedItems(int[] indptr, int[] indices, long[][] bitsets) {
+        this.indptr = indptr;
+        this.indices = indices;
+        this.bitsets = bitsets;
+    }
+
+    /**
+     * Returns the bitset for a user, or null if the user's items are stored as a sorted run.
+     */
+    long[] bitset(int u) {
+        return this.bitsets[u];
+    }
+
+    int start(int u) {
+        return this.indptr[u];
+    }
+
+    int end(int u) {
+        return this.indptr[u + 1];
+    }
+
+    int[] indices() {
+        return this.indices;
+    }
+
+    /**
+     * Returns the sorted items added for a user after fitting, which are never in the fitted items.
+     */
+    int[] added(int u) {
+        int[][] added = this.added;
+        int[] items = added == null ? null : added[u];
+        return items == null ? NONE : items;
+    }
+
+    /**
+     * Adds items for users, skipping items they already rated.
+     */
+    void add(int[] users, int[] items, int size) {
+        // sort by user, then item
+        long[] keys = new long[size];
+        for (int j = 0; j < size; j++) {
+            keys[j] = (long) users[j] << 32 | items[j];
+        }
+        Arrays.sort(keys);
+
+        int[][] added = this.added == null ? new int[this.indptr.length - 1][] : this.added;
+        int s = 0;
+        while (s < size) {
+            int u = (int) (keys[s] >>> 32);
+            int e = s;
+            while (e < size && (int) (keys[e] >>> 32) == u) {
+                e++;
+            }
+
+            // merge the user's new items into a copy of the user's array
+            int[] previous = added[u] == null ? NONE : added[u];
+            int[] next = new int[previous.length + e - s];
+            int n = 0;
+            int p = 0;
+            for (int j = s; j < e; j++) {
+                int item = (int) keys[j];
+                while (p < previous.length && previous[p] < item) {
+                    next[n++] = previous[p++];
+                }
+                boolean seen = (p < previous.length && previous[p] == item) || (j > s && keys[j - 1] == keys[j]);
+                if (!seen && !fitted(u, item)) {
+                    next[n++] = item;
+                }
+            }
+            while (p < previous.length) {
+                next[n++] = previous[p++];
+            }
+            if (n > previous.length) {
+                added[u] = n == next.length ? next : Arrays.copyOf(next, n);
+            }
+            s = e;
+        }
+        this.added = added;
+    }
+
+    /**
+     * Returns whether a user rated an item.
+     */
+    boolean contains(int u, int item) {
+        int[] added = added(u);
+        return fitted(u, item) || (added.length > 0 && Arrays.binarySearch(added, item) >= 0);
+    }
+
+    private boolean fitted(int u, int item) {
+        long[] bits = this.bitsets[u];
+        if (bits != null) {
+            return (bits[item >>> 6] & (1L << item)) != 0;
+        }
+        return Arrays.binarySearch(this.indices, this.indptr[u], this.indptr[u + 1], item) >= 0;
+    }
+
+    void write(ModelFile.Writer out) throws IOException {
+        if (this.added != null) {
+            merge().write(out);
+            return;
+        }
+
+        int users = this.indptr.length - 1;
+        out.putInt(users);
+        out.putInt(this.indices.length);
+        out.putInts(this.indptr, 0, this.indptr.length);
+        out.putInts(this.indices, 0, this.indices.length);
+
+        int count = 0;
+        for (long[] bits : this.bitsets) {
+            if (bits != null) {
+                count++;
+            }
+        }
+        out.putInt(count);
+        for (int u = 0; u < users; u++) {
+            long[] bits = this.bitsets[u];
+            if (bits != null) {
+                out.putInt(u);
+                out.putInt(bits.length);
+                out.putLongs(bits);
+            }
+        }
+    }
+
+    // returns an instance without added items that has the same items
+    private RatedItems merge() {
+        int users = this.indptr.length - 1;
+        int[] indptr = new int[users + 1];
+        int[] indices = new int[this.indices.length];
+        long[][] bitsets = new long[users][];
+        int n = 0;
+        for (int u = 0; u < users; u++) {
+            int[] added = added(u);
+            if (this.bitsets[u] != null) {
+                bitsets[u] = this.bitsets[u].clone();
+                for (int item : added) {
+                    bitsets[u][item >>> 6] |= 1L << item;
+                }
+            } else {
+                int size = end(u) - start(u) + added.length;
+                if (n + size > indices.length) {
+                    indices = Arrays.copyOf(indices, Math.max(n + size, indices.length + (indices.length >> 1)));
+                }
+                System.arraycopy(this.indices, start(u), indices, n, end(u) - start(u));
+                // added items are never in the fitted items
+                System.arraycopy(added, 0, indices, n + end(u) - start(u), added.length);
+                Arrays.sort(indices, n, n + size);
+                n += size;
+            }
+            indptr[u + 1] = n;
+        }
+        return new RatedItems(indptr, Arrays.copyOf(indices, n), bitsets);
+    }
+
+    static RatedItems read(ModelFile.Reader in) throws IOException {
+        int users = in.getInt();
+        int size = in.getInt();
+        int[] indptr = in.getInts(users + 1);
+        int[] indices = in.getInts(size);
+
+        long[][] bitsets = new long[users][];
+        int count = in.getInt();
+        for (int j = 0; j < count; j++) {
+            int u = in.getInt();
+            bitsets[u] = in.getLongs(in.getInt());
+        }
+        return new RatedItems(indptr, indices, bitsets);
+    }
+}
@@ -1,37 +1,110 @@
 package org.ankane.disco;
 
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
-import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 /**
  * A recommender.
+ *
+ * <p>Methods are thread-safe, and methods that return factors return copies. Fold-in and
+ * updates change the recommender in place and can run at the same time as reads. Each
+ * read sees the recommender before or after each change and never part of one, but
+ * consecutive reads can see different versions. Reads only lock if a change is
+ * published while they run.
  */
 public class Recommender<T, U> {
-    private IdMap<T> userMap;
-    private IdMap<U> itemMap;
-    private List<Set<Integer>> rated;
-    private float globalMean;
-    private float[][] userFactors;
-    private float[][] itemFactors;
-    private float[] userNorms;
-    private float[] itemNorms;
-
-    private Recommender(IdMap<T> userMap, IdMap<U> itemMap, List<Set<Integer>> rated, float globalMean, float[][] userFactors, float[][] itemFactors) {
-        this.userMap = userMap;
-        this.itemMap = itemMap;
+    // starting from zero takes more steps than a training iteration, but more than this rarely changes results
+    private static final int FOLD_IN_CG_STEPS = 10;
+    // lock stripes for users and for items in online updates
+    private static final int UPDATE_LOCKS = 256;
+
+    // replaced by fold-in, so read each once per call
+    private volatile FoldedRows<T> userRows;
+    private volatile FoldedRows<U> itemRows;
+    // items rated after fitting are added in place by updates
+    private final RatedItems rated;
+    private final float globalMean;
+    private final Matrix userFactors;
+    private final Matrix itemFactors;
+    private final Matrix userNorms;
+    private final Matrix itemNorms;
+    private final HnswIndex userIndex;
+    private final HnswIndex itemIndex;
+    private final HnswIndex userRecsIndex;
+    private final NormBounds bounds;
+    private final NeighborTable itemNeighbors;
+    // training options for fold-in, with NaN regularization if unknown
+    private final boolean implicit;
+    private final float regularization;
+    private final float alpha;
+    // learning rates for explicit feedback, if kept
+    private final TwinLearner learner;
+    // empty without learning rates, since there are no updates to lock
+    private final ReentrantLock[] updateLocks;
+    // fold-in and updates publish under the write lock, and reads validate against it
+    private final StampedLock publishLock;
+    // serializes fold-in without locking on the instance callers can see
+    private final Object foldInLock;
+
+    private Recommender(FoldedRows<T> userRows, FoldedRows<U> itemRows, RatedItems rated, float globalMean, Matrix userFactors, Matrix itemFactors, Matrix userNorms, Matrix itemNorms, HnswIndex userIndex, HnswIndex itemIndex, HnswIndex userRecsIndex, NormBounds bounds, NeighborTable itemNeighbors, boolean implicit, float regularization, float alpha, TwinLearner learner) {
+        this.userRows = userRows;
+        this.itemRows = itemRows;
         this.rated = rated;
         this.globalMean = globalMean;
         this.userFactors = userFactors;
         this.itemFactors = itemFactors;
+        this.userNorms = userNorms;
+        this.itemNorms = itemNorms;
+        this.userIndex = userIndex;
+        this.itemIndex = itemIndex;
+        this.userRecsIndex = userRecsIndex;
+        this.bounds = bounds;
+        this.itemNeighbors = itemNeighbors;
+        this.implicit = implicit;
+        this.regularization = regularization;
+        this.alpha = alpha;
+        this.learner = learner;
+        this.updateLocks = new ReentrantLock[learner == null ? 0 : 2 * UPDATE_LOCKS];
+        for (int s = 0; s < this.updateLocks.length; s++) {
+            this.updateLocks[s] = new ReentrantLock();
+        }
+        this.publishLock = new StampedLock();
+        this.foldInLock = new Object();
+    }
+
+    /**
+     * Loads a recommender from a file.
+     */
+    public static <T, U> Recommender<T, U> load(Path path) throws IOException {
+        return load(path, false);
+    }
+
+    /**
+     * Loads a recommender from a file with factors memory-mapped instead of copied onto the heap.
+     *
+     * <p>Loading is nearly instant, and processes that map the same file share memory. The file must not be changed while the recommender is in use.
+     */
+    public static <T, U> Recommender<T, U> loadMapped(Path path) throws IOException {
+        return load(path, true);
     }
 
     /**
@@ -56,263 +129,920 @@ public class Recommender<T, U> {
     }
 
     static <T, U> Recommender<T, U> fit(Dataset<T, U> trainSet, RecommenderBuilder options, boolean implicit) {
-        IdMap<T> userMap = new IdMap<>();
-        IdMap<U> itemMap = new IdMap<>();
-        List<Set<Integer>> rated = new ArrayList<>();
-
-        int size = implicit ? 0 : trainSet.size();
-        CooMatrix trainData = new CooMatrix(size);
-        float sum = 0;
-
-        LilMatrix cui = new LilMatrix();
-        LilMatrix ciu = new LilMatrix();
+        // copy id maps so the dataset can keep changing
+        // ratings are read directly from the dataset
+        IdMap<T> userMap = trainSet.userMap.copy();
+        IdMap<U> itemMap = trainSet.itemMap.copy();
+        CooMatrix trainData = trainSet.data;
 
-        for (int j = 0; j < trainSet.data.size(); j++) {
-            Rating<T, U> rating = trainSet.data.get(j);
-
-            int u = userMap.add(rating.userId);
-            int i = itemMap.add(rating.itemId);
-
-            if (implicit) {
-                float confidence = 1.0f + options.alpha * rating.value;
-                cui.add(u, i, confidence);
-                ciu.add(i, u, confidence);
-            } else {
-                trainData.add(u, i, rating.value);
-                sum += rating.value;
-            }
+        int users = userMap.size();
+        int items = itemMap.size();
+        RatedItems rated = new RatedItems(users, items, trainData.rowIndices, trainData.colIndices, trainData.size());
 
-            if (u == rated.size()) {
-                rated.add(new HashSet<>());
+        float sum = 0;
+        if (!implicit) {
+            for (int j = 0; j < trainData.size(); j++) {
+                sum += trainData.values[j];
             }
-            rated.get(u).add(i);
         }
-
         float globalMean = implicit ? 0.0f : sum / trainData.size();
 
-        int users = userMap.size();
-        int items = itemMap.size();
+        Solver solver = options.solver.orElse(implicit ? Solver.CG : Solver.SGD);
+        if (solver == (implicit ? Solver.SGD : Solver.CG)) {
+            throw new IllegalArgumentException(solver + " is not supported for " + (implicit ? "implicit" : "explicit") + " feedback");
+        }
+
         int factors = options.factors;
+        int threads = options.threads;
+        Executor executor = options.executor.orElse(null);
         Random prng = options.seed.map(s -> new Random(s)).orElseGet(() -> new Random());
         float endRange = implicit ? 0.01f : 0.1f;
 
-        float[][] userFactors = createFactors(users, factors, prng, endRange);
-        float[][] itemFactors = createFactors(items, factors, prng, endRange);
+        Matrix userFactors = createFactors(users, factors, prng, endRange, options.offHeap);
+        Matrix itemFactors = createFactors(items, factors, prng, endRange, options.offHeap);
+
+        // previous index of each row, or -1 for new rows
+        int[] userSources = null;
+        int[] itemSources = null;
+        TwinLearner previousLearner = null;
+        if (options.warmStart.isPresent()) {
+            Recommender<?, ?> previous = options.warmStart.get();
+            if (previous.userFactors.cols() != factors) {
+                throw new IllegalArgumentException("Warm start must have the same number of factors");
+            }
+            userSources = warmStart(userMap, previous.userRows, previous.userFactors, userFactors);
+            itemSources = warmStart(itemMap, previous.itemRows, previous.itemFactors, itemFactors);
+            previousLearner = previous.learner;
+        }
 
-        Recommender<T, U> recommender = new Recommender<T, U>(userMap, itemMap, rated, globalMean, userFactors, itemFactors);
+        float regularization;
+        TwinLearner keptLearner = null;
 
         if (implicit) {
-            // conjugate gradient method
+            // conjugate gradient method, or an exact solve for each row
             // https://www.benfrederickson.com/fast-implicit-matrix-factorization/
 
-            float regularization = options.regularization.orElse(0.01f);
+            regularization = options.regularization.orElse(0.01f);
+
+            float[] confidences = new float[trainData.size()];
+            for (int j = 0; j < trainData.size(); j++) {
+                confidences[j] = 1.0f + options.alpha * trainData.values[j];
+            }
+
+            // both orientations come from counting sorts over the coordinates
+            CsrMatrix cui = new CsrMatrix(users, trainData.rowIndices, trainData.colIndices, confidences, trainData.size());
+            CsrMatrix ciu = new CsrMatrix(items, trainData.colIndices, trainData.rowIndices, confidences, trainData.size());
 
             for (int iteration = 0; iteration < options.iterations; iteration++) {
-                leastSquaresCg(cui, userFactors, itemFactors, regularization, factors);
-                leastSquaresCg(ciu, itemFactors, userFactors, regularization, factors);
+                if (solver == Solver.CHOLESKY) {
+                    leastSquaresCholesky(cui, userFactors, itemFactors, regularization, true, factors, threads, executor);
+                    leastSquaresCholesky(ciu, itemFactors, userFactors, regularization, true, factors, threads, executor);
+                } else {
+                    leastSquaresCg(cui, userFactors, itemFactors, regularization, factors, options.cgSteps, threads, executor);
+                    leastSquaresCg(ciu, itemFactors, userFactors, regularization, factors, options.cgSteps, threads, executor);
+                }
 
                 if (options.callback.isPresent()) {
                     FitInfo info = new FitInfo(iteration + 1, Float.NaN);
                     options.callback.get().accept(info);
                 }
             }
+        } else if (solver == Solver.CHOLESKY) {
+            // alternating least squares with the same loss as the stochastic gradient method
+
+            float lambda = options.regularization.orElse(0.1f);
+            regularization = lambda;
+
+            CsrMatrix rui = new CsrMatrix(users, trainData.rowIndices, trainData.colIndices, trainData.values, trainData.size());
+            CsrMatrix riu = new CsrMatrix(items, trainData.colIndices, trainData.rowIndices, trainData.values, trainData.size());
+
+            for (int iteration = 0; iteration < options.iterations; iteration++) {
+                leastSquaresCholesky(rui, userFactors, itemFactors, lambda, false, factors, threads, executor);
+                leastSquaresCholesky(riu, itemFactors, userFactors, lambda, false, factors, threads, executor);
+
+                if (options.callback.isPresent()) {
+                    FitInfo info = new FitInfo(iteration + 1, rmse(rui, userFactors, itemFactors));
+                    options.callback.get().accept(info);
+                }
+            }
         } else {
             // stochastic gradient method with twin learners
             // https://www.csie.ntu.edu.tw/~cjlin/papers/libmf/mf_adaptive_pakdd.pdf
             // algorithm 2
 
-            float learningRate = options.learningRate;
             float lambda = options.regularization.orElse(0.1f);
-            int k = factors;
-            int ks = Math.max((int) Math.round(k * 0.08), 1);
-
-            float[] gSlow = new float[users];
-            float[] gFast = new float[users];
-            Arrays.fill(gSlow, 1.0f);
-            Arrays.fill(gFast, 1.0f);
+            regularization = lambda;
+            TwinLearner learner = new TwinLearner(users, items, factors, options.learningRate, lambda);
+            boolean keptRates = options.keepLearningRates && previousLearner != null;
+            if (keptRates) {
+                learner.copyFrom(previousLearner, userSources, itemSources);
+            }
 
-            float[] hSlow = new float[items];
-            float[] hFast = new float[items];
-            Arrays.fill(hSlow, 1.0f);
-            Arrays.fill(hFast, 1.0f);
+            // block grid for parallel updates
+            // https://www.csie.ntu.edu.tw/~cjlin/papers/libmf/libmf_journal.pdf
+            int blocks = options.blocks.orElse(threads);
+            int[] blockStarts = null;
+            int[] blockRatings = null;
+            if (blocks > 1) {
+                blockStarts = new int[blocks * blocks + 1];
+                blockRatings = new int[trainData.size()];
+                for (int j = 0; j < trainData.size(); j++) {
+                    blockStarts[block(trainData, j, blocks) + 1]++;
+                }
+                for (int b = 0; b < blocks * blocks; b++) {
+                    blockStarts[b + 1] += blockStarts[b];
+                }
+                int[] next = Arrays.copyOf(blockStarts, blocks * blocks);
+                for (int j = 0; j < trainData.size(); j++) {
+                    blockRatings[next[block(trainData, j, blocks)]++] = j;
+                }
+            }
 
+            // reused for each iteration, and only allocated without blocks
+            int[] order = blocks > 1 ? null : new int[trainData.size()];
             for (int iteration = 0; iteration < options.iterations; iteration++) {
                 double trainLoss = 0.0;
 
-                // shuffle for each iteration
-                for (int j : sample(prng, trainData.size())) {
-                    int u = trainData.rowIndices[j];
-                    int v = trainData.colIndices[j];
-                    float r = trainData.values[j];
+                // don't update fast learner on first outer iteration
+                // unless its learning rates were kept from a previous fit
+                boolean fast = iteration > 0 || keptRates;
 
-                    float[] pu = userFactors[u];
-                    float[] qv = itemFactors[v];
-                    float e = r - dot(pu, qv);
+                if (blocks > 1) {
+                    trainLoss = sgdBlocks(trainData, blockStarts, blockRatings, blocks, learner, userFactors, itemFactors, fast, prng, threads, executor);
+                } else {
+                    float[] p = new float[factors];
+                    float[] q = new float[factors];
 
-                    // slow learner
-                    float gHat = 0.0f;
-                    float hHat = 0.0f;
+                    // shuffle for each iteration, starting from the identity
+                    for (int j = 0; j < order.length; j++) {
+                        order[j] = j;
+                    }
+                    shuffle(order, 0, order.length, prng);
+                    for (int j : order) {
+                        int u = trainData.rowIndices[j];
+                        int v = trainData.colIndices[j];
+                        float e = sgdUpdate(learner, userFactors, itemFactors, u, v, trainData.values[j], fast, p, q);
+                        trainLoss += e * e;
+                    }
+                }
 
-                    float nu = learningRate / (float) Math.sqrt(gSlow[u]);
-                    float nv = learningRate / (float) Math.sqrt(hSlow[v]);
+                if (options.callback.isPresent()) {
+                    trainLoss = Math.sqrt(trainLoss / trainData.size());
+                    FitInfo info = new FitInfo(iteration + 1, (float) trainLoss);
+                    options.callback.get().accept(info);
+                }
+            }
 
-                    for (int d = 0; d < ks; d++) {
-                        float gud = -e * qv[d] + lambda * pu[d];
-                        float hvd = -e * pu[d] + lambda * qv[d];
+            if (options.keepLearningRates) {
+                keptLearner = learner;
+            }
+        }
 
-                        gHat += gud * gud;
-                        hHat += hvd * hvd;
+        Matrix userNorms = norms(userFactors, options.offHeap);
+        Matrix itemNorms = norms(itemFactors, options.offHeap);
 
-                        pu[d] -= nu * gud;
-                        qv[d] -= nv * hvd;
-                    }
+        HnswIndex userIndex = null;
+        HnswIndex itemIndex = null;
+        if (options.similarIndex) {
+            userIndex = new HnswIndex(userFactors, userNorms, false, options.indexM, options.indexEfConstruction, options.indexEfSearch, prng, threads, executor);
+            itemIndex = new HnswIndex(itemFactors, itemNorms, false, options.indexM, options.indexEfConstruction, options.indexEfSearch, prng, threads, executor);
+        }
+
+        NormBounds bounds = null;
+        if (options.pruneScans) {
+            bounds = new NormBounds(userFactors, itemFactors, itemNorms, options.offHeap);
+        }
 
-                    gSlow[u] += gHat / (float) ks;
-                    hSlow[v] += hHat / (float) ks;
+        HnswIndex userRecsIndex = null;
+        if (options.userRecsIndex) {
+            userRecsIndex = new HnswIndex(itemFactors, itemNorms, true, options.indexM, options.indexEfConstruction, options.indexCandidates, prng, threads, executor);
+        }
 
-                    // fast learner
-                    // don't update on first outer iteration
-                    if (iteration > 0) {
-                        gHat = 0.0f;
-                        hHat = 0.0f;
+        FoldedRows<T> userRows = new FoldedRows<T>(userMap);
+        FoldedRows<U> itemRows = new FoldedRows<U>(itemMap);
+        Recommender<T, U> recommender = new Recommender<T, U>(userRows, itemRows, rated, globalMean, userFactors, itemFactors, userNorms, itemNorms, userIndex, itemIndex, userRecsIndex, bounds, null, implicit, regularization, options.alpha, keptLearner);
+        if (options.itemNeighbors <= 0) {
+            return recommender;
+        }
 
-                        nu = learningRate / (float) Math.sqrt(gFast[u]);
-                        nv = learningRate / (float) Math.sqrt(hFast[v]);
+        // neighbors come from the same search as itemRecs on a recommender without a table
+        NeighborTable itemNeighbors = new NeighborTable(items, Math.min(options.itemNeighbors, Math.max(items - 1, 0)), threads, executor, recommender::similarItems);
+        return new Recommender<T, U>(userRows, itemRows, rated, globalMean, userFactors, itemFactors, userNorms, itemNorms, userIndex, itemIndex, userRecsIndex, bounds, itemNeighbors, implicit, regularization, options.alpha, keptLearner);
+    }
 
-                        for (int d = ks; d < k; d++) {
-                            float gud = -e * qv[d] + lambda * pu[d];
-                            float hvd = -e * pu[d] + lambda * qv[d];
+    /**
+     * Saves the recommender to a file.
+     *
+     * <p>User and item ids must be Integer, Long, or String.
+     */
+    public void save(Path path) throws IOException {
+        // learning rates change under the update locks, so hold them all for a consistent file
+        ReentrantLock[] locks = this.updateLocks;
+        int locked = 0;
+        long stamp = 0L;
+        try {
+            for (; locked < locks.length; locked++) {
+                locks[locked].lock();
+            }
+            stamp = this.publishLock.readLock();
+            save(path, this.userRows, this.itemRows);
+        } finally {
+            if (stamp != 0L) {
+                this.publishLock.unlockRead(stamp);
+            }
+            for (int c = locked - 1; c >= 0; c--) {
+                locks[c].unlock();
+            }
+        }
+    }
 
-                            gHat += gud * gud;
-                            hHat += hvd * hvd;
+    private void save(Path path, FoldedRows<T> users, FoldedRows<U> items) throws IOException {
+
+        // write to a temporary file first so processes with the file mapped are not affected
+        Path dir = path.toAbsolutePath().getParent();
+        Path tempPath = Files.createTempFile(dir, path.getFileName().toString(), ".tmp");
+        try {
+            try (ModelFile.Writer out = new ModelFile.Writer(tempPath)) {
+                out.beginSection(ModelFile.METADATA);
+                out.putFloat(this.globalMean);
+                out.endSection();
+
+                out.beginSection(ModelFile.USER_IDS);
+                users.map().write(out);
+                out.endSection();
+
+                out.beginSection(ModelFile.ITEM_IDS);
+                items.map().write(out);
+                out.endSection();
+
+                out.beginSection(ModelFile.RATED);
+                this.rated.write(out);
+                out.endSection();
+
+                out.beginSection(ModelFile.USER_FACTORS);
+                out.putMatrix(this.userFactors);
+                out.endSection();
+
+                out.beginSection(ModelFile.ITEM_FACTORS);
+                out.putMatrix(this.itemFactors);
+                out.endSection();
+
+                out.beginSection(ModelFile.USER_NORMS);
+                out.putMatrix(this.userNorms);
+                out.endSection();
+
+                out.beginSection(ModelFile.ITEM_NORMS);
+                out.putMatrix(this.itemNorms);
+                out.endSection();
+
+                if (this.userIndex != null) {
+                    out.beginSection(ModelFile.USER_INDEX);
+                    this.userIndex.write(out);
+                    out.endSection();
+                }
 
-                            pu[d] -= nu * gud;
-                            qv[d] -= nv * hvd;
-                        }
+                if (this.itemIndex != null) {
+                    out.beginSection(ModelFile.ITEM_INDEX);
+                    this.itemIndex.write(out);
+                    out.endSection();
+                }
 
-                        gFast[u] += gHat / (float) (k - ks);
-                        hFast[v] += hHat / (float) (k - ks);
-                    }
+                if (this.userRecsIndex != null) {
+                    out.beginSection(ModelFile.USER_RECS_INDEX);
+                    this.userRecsIndex.write(out);
+                    out.endSection();
+                }
 
-                    trainLoss += e * e;
+                if (this.bounds != null) {
+                    out.beginSection(ModelFile.NORM_BOUNDS);
+                    this.bounds.write(out);
+                    out.endSection();
                 }
 
-                if (options.callback.isPresent()) {
-                    trainLoss = Math.sqrt(trainLoss / trainData.size());
-                    FitInfo info = new FitInfo(iteration + 1, (float) trainLoss);
-                    options.callback.get().accept(info);
+                if (this.itemNeighbors != null) {
+                    out.beginSection(ModelFile.ITEM_NEIGHBORS);
+                    this.itemNeighbors.write(out);
+                    out.endSection();
+                }
+
+                if (!Float.isNaN(this.regularization)) {
+                    out.beginSection(ModelFile.FIT_OPTIONS);
+                    out.putByte((byte) (this.implicit ? 1 : 0));
+                    out.putFloat(this.regularization);
+                    out.putFloat(this.alpha);
+                    out.endSection();
                 }
-            }
-        }
 
-        recommender.userNorms = norms(recommender.userFactors);
-        recommender.itemNorms = norms(recommender.itemFactors);
+                if (this.learner != null) {
+                    out.beginSection(ModelFile.LEARNER);
+                    this.learner.write(out);
+                    out.endSection();
+                }
 
-        return recommender;
+                if (users.added() > 0) {
+                    out.beginSection(ModelFile.FOLDED_USERS);
+                    users.write(out, this.userFactors.cols());
+                    out.endSection();
+                }
+
+                if (items.added() > 0) {
+                    out.beginSection(ModelFile.FOLDED_ITEMS);
+                    items.write(out, this.itemFactors.cols());
+                    out.endSection();
+                }
+            }
+            try {
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
     }
 
     /**
      * Returns the predicted rating for a specific user and item.
      */
     public float predict(T userId, U itemId) {
-        Optional<Integer> i = this.userMap.get(userId);
-        if (!i.isPresent()) {
-            return this.globalMean;
-        }
+        return read(() -> {
+            FoldedRows<T> users = this.userRows;
+            FoldedRows<U> items = this.itemRows;
 
-        Optional<Integer> j = this.itemMap.get(itemId);
-        if (!j.isPresent()) {
-            return this.globalMean;
-        }
+            int u = users.get(userId);
+            if (u < 0) {
+                return this.globalMean;
+            }
+
+            int v = items.get(itemId);
+            if (v < 0) {
+                return this.globalMean;
+            }
 
-        return dot(this.userFactors[i.get()], this.itemFactors[j.get()]);
+            if (u < users.offset() && v < items.offset()) {
+                return this.userFactors.dot(u, this.itemFactors, v);
+            }
+            float[] f = factors(this.userFactors, users, u);
+            return dot(f, 0, factors(this.itemFactors, items, v), 0, f.length);
+        });
     }
 
     /**
      * Returns recommendations for a user.
      */
     public List<Rec<U>> userRecs(T userId, int count) {
-        Optional<Integer> oi = this.userMap.get(userId);
-        if (!oi.isPresent()) {
-            return new ArrayList<>();
-        }
-        int i = oi.get();
+        return read(() -> {
+            FoldedRows<T> users = this.userRows;
+            FoldedRows<U> items = this.itemRows;
+            int i = users.get(userId);
+            if (i < 0) {
+                return new ArrayList<>();
+            }
 
-        Set<Integer> rated = this.rated.get(i);
-        float[] f = this.userFactors[i];
-        List<Rec<Integer>> predictions = new ArrayList<>(this.itemFactors.length);
-        for (int j = 0; j < this.itemFactors.length; j++) {
-            predictions.add(new Rec<Integer>(j, dot(f, this.itemFactors[j])));
+            int capacity = Math.max(Math.min(count, items.rows()), 0);
+            int[] ids = new int[capacity];
+            float[] scores = new float[capacity];
+            int size = userRecs(users, items, i, ids, scores, capacity, null);
+            return recs(items, ids, scores, size);
+        });
+    }
+
+    /**
+     * Fills the buffers with recommendations for a user and returns the number of recommendations.
+     *
+     * <p>The number of recommendations is at most the length of the buffers. Item indices refer to positions in {@link #itemIds()}. Nothing is allocated unless the recommender has an index.
+     */
+    public int userRecs(T userId, int[] itemIndices, float[] scores) {
+        checkBuffers(itemIndices, scores);
+        // the same as read, but without allocating a lambda
+        long stamp = startRead();
+        try {
+            int size;
+            do {
+                FoldedRows<T> users = this.userRows;
+                int i = users.get(userId);
+                size = i < 0 ? 0 : userRecs(users, this.itemRows, i, itemIndices, scores, itemIndices.length, null);
+            } while ((stamp = retryRead(stamp)) != 0L);
+            return size;
+        } finally {
+            endRead(stamp);
         }
-        predictions.sort(Comparator.comparing(v -> -v.score));
+    }
 
-        List<Rec<U>> recs = new ArrayList<>();
-        for (Rec<Integer> v : predictions) {
-            if (rated.contains(v.id)) {
-                continue;
+    /**
+     * Returns recommendations for multiple users.
+     *
+     * <p>Scores are computed for blocks of users at a time, which is much faster than calling {@link #userRecs(Object, int)} for each user. Results are exact even if the recommender has an index.
+     */
+    public Map<T, List<Rec<U>>> userRecs(Collection<T> userIds, int count) {
+        return userRecs(userIds, count, 1);
+    }
+
+    /**
+     * Returns recommendations for multiple users with the given number of threads.
+     */
+    public Map<T, List<Rec<U>>> userRecs(Collection<T> userIds, int count, int threads) {
+        return read(() -> {
+            FoldedRows<T> users = this.userRows;
+            FoldedRows<U> items = this.itemRows;
+
+            List<T> ids = new ArrayList<>(userIds);
+            int[] indices = new int[ids.size()];
+            for (int k = 0; k < indices.length; k++) {
+                indices[k] = users.get(ids.get(k));
             }
 
-            recs.add(new Rec<U>(this.itemMap.lookup(v.id), v.score));
+            int capacity = Math.max(Math.min(count, items.rows()), 0);
+            int[][] itemIndices = new int[indices.length][];
+            float[][] scores = new float[indices.length][];
+            int[] sizes = new int[indices.length];
+            batchUserRecs(users, items, indices, capacity, itemIndices, scores, sizes, threads);
 
-            if (recs.size() == count) {
-                break;
+            Map<T, List<Rec<U>>> recs = new LinkedHashMap<>();
+            for (int k = 0; k < indices.length; k++) {
+                recs.put(ids.get(k), indices[k] < 0 ? new ArrayList<>() : recs(items, itemIndices[k], scores[k], sizes[k]));
             }
-        }
-        return recs;
+            return recs;
+        });
+    }
+
+    /**
+     * Returns recommendations for a user from items that match a filter.
+     *
+     * <p>Results are exact even if the recommender has an index.
+     */
+    public List<Rec<U>> userRecs(T userId, int count, Predicate<U> filter) {
+        return read(() -> {
+            FoldedRows<U> items = this.itemRows;
+            return userRecs(userId, items, count, (j) -> filter.test(items.lookup(j)));
+        });
+    }
+
+    /**
+     * Returns recommendations for a user from items whose indices are set.
+     *
+     * <p>Item indices refer to positions in {@link #itemIds()}. Results are exact even if the recommender has an index.
+     */
+    public List<Rec<U>> userRecs(T userId, int count, BitSet itemIndices) {
+        return read(() -> {
+            return userRecs(userId, this.itemRows, count, itemIndices::get);
+        });
+    }
+
+    /**
+     * Returns the top candidates for a user, with the same scores as {@link #userRecs(Object, int)}.
+     *
+     * <p>Only the candidates are scored, which is much faster than recommendations from all items when there are few of them. Unknown candidates are skipped, and rated items are not excluded.
+     */
+    public List<Rec<U>> rank(T userId, Collection<U> candidates, int count) {
+        return read(() -> {
+            FoldedRows<T> users = this.userRows;
+            FoldedRows<U> items = this.itemRows;
+            int i = users.get(userId);
+            if (i < 0) {
+                return new ArrayList<>();
+            }
+
+            int[] indices = new int[candidates.size()];
+            int n = 0;
+            for (U itemId : candidates) {
+                int j = items.get(itemId);
+                if (j >= 0) {
+                    indices[n++] = j;
+                }
+            }
+            indices = unique(indices, n);
+
+            float[] f = factors(this.userFactors, users, i);
+            int capacity = Math.max(Math.min(count, indices.length), 0);
+            int[] ids = new int[capacity];
+            float[] scores = new float[capacity];
+            int size = 0;
+            for (int j : indices) {
+                float score = j < items.offset() ? this.itemFactors.dot(j, f) : dot(items.row(j).factors, 0, f, 0, f.length);
+                size = TopK.push(ids, scores, size, capacity, j, score);
+            }
+            TopK.sort(ids, scores, size);
+            return recs(items, ids, scores, size);
+        });
+    }
+
+    /**
+     * Creates an exporter for recommendations for all users or items.
+     */
+    public Exporter<T, U> exporter() {
+        return new Exporter<T, U>(this);
     }
 
     /**
      * Returns recommendations for an item.
      */
     public List<Rec<U>> itemRecs(U itemId, int count) {
-        return similar(
-            this.itemMap,
-            this.itemFactors,
-            this.itemNorms,
-            itemId,
-            count
-        );
+        return read(() -> {
+            FoldedRows<U> items = this.itemRows;
+            int i = items.get(itemId);
+            if (i < 0) {
+                return new ArrayList<>();
+            }
+
+            int capacity = Math.max(Math.min(count, items.rows()), 0);
+            int[] ids = new int[capacity];
+            float[] scores = new float[capacity];
+            int size = similarItems(items, i, ids, scores, capacity, null);
+            return recs(items, ids, scores, size);
+        });
+    }
+
+    /**
+     * Returns recommendations for an item from items that match a filter.
+     *
+     * <p>Results are exact even if the recommender has an index.
+     */
+    public List<Rec<U>> itemRecs(U itemId, int count, Predicate<U> filter) {
+        return read(() -> {
+            FoldedRows<U> items = this.itemRows;
+            return itemRecs(itemId, items, count, (j) -> filter.test(items.lookup(j)));
+        });
+    }
+
+    /**
+     * Returns recommendations for an item from items whose indices are set.
+     *
+     * <p>Item indices refer to positions in {@link #itemIds()}. Results are exact even if the recommender has an index.
+     */
+    public List<Rec<U>> itemRecs(U itemId, int count, BitSet itemIndices) {
+        return read(() -> {
+            return itemRecs(itemId, this.itemRows, count, itemIndices::get);
+        });
+    }
+
+    /**
+     * Returns recommendations for a basket of items, like the items viewed in a session.
+     *
+     * <p>Items are scored by cosine similarity with the sum of the normalized factors of the basket, so a basket with one item has the same results as {@link #itemRecs(Object, int)}. Items in the basket are excluded, and unknown items are ignored.
+     */
+    public List<Rec<U>> basketRecs(Collection<U> itemIds, int count) {
+        Map<U, Float> weights = new LinkedHashMap<>();
+        for (U itemId : itemIds) {
+            weights.put(itemId, 1.0f);
+        }
+        return basketRecs(weights, count);
+    }
+
+    /**
+     * Returns recommendations for a basket of items with weights.
+     *
+     * <p>Weights scale the normalized factors of each item in the sum.
+     */
+    public List<Rec<U>> basketRecs(Map<U, Float> weights, int count) {
+        return read(() -> {
+            FoldedRows<U> items = this.itemRows;
+            int[] basket = new int[weights.size()];
+            int n = 0;
+            float[] f = new float[this.itemFactors.cols()];
+            for (Map.Entry<U, Float> entry : weights.entrySet()) {
+                int j = items.get(entry.getKey());
+                if (j < 0) {
+                    continue;
+                }
+                basket[n++] = j;
+                float norm = j < items.offset() ? this.itemNorms.get(j, 0) : items.row(j).norm;
+                if (norm > 0.0f) {
+                    scaledAdd(f, 0, entry.getValue() / norm, factors(this.itemFactors, items, j), 0, f.length);
+                }
+            }
+            if (n == 0) {
+                return new ArrayList<>();
+            }
+            int[] excluded = unique(basket, n);
+
+            float norm = (float) Math.sqrt(dot(f, 0, f, 0, f.length));
+            HnswIndex index = this.itemIndex;
+            float[] query = index == null ? null : normalize(f, norm);
+            int capacity = Math.max(Math.min(count, items.rows() - excluded.length), 0);
+            int[] ids = new int[capacity];
+            float[] scores = new float[capacity];
+            int size = similar(this.itemFactors, this.itemNorms, index, this.bounds == null ? null : this.bounds.itemTails, items, f, norm, query, -1, excluded.length, ids, scores, capacity, (j) -> Arrays.binarySearch(excluded, j) < 0);
+            return recs(items, ids, scores, size);
+        });
     }
 
     /**
      * Returns similar users.
      */
     public List<Rec<T>> similarUsers(T userId, int count) {
-        return similar(
-            this.userMap,
-            this.userFactors,
-            this.userNorms,
-            userId,
-            count
-        );
+        return read(() -> {
+            FoldedRows<T> users = this.userRows;
+            int i = users.get(userId);
+            if (i < 0) {
+                return new ArrayList<>();
+            }
+
+            int capacity = Math.max(Math.min(count, users.rows()), 0);
+            int[] ids = new int[capacity];
+            float[] scores = new float[capacity];
+            int size = similarUsers(users, i, ids, scores, capacity);
+            return recs(users, ids, scores, size);
+        });
+    }
+
+    /**
+     * Fills the buffers with recommendations for an item and returns the number of recommendations.
+     *
+     * <p>The number of recommendations is at most the length of the buffers. Item indices refer to positions in {@link #itemIds()}. Nothing is allocated unless the recommender has an index.
+     */
+    public int itemRecs(U itemId, int[] itemIndices, float[] scores) {
+        checkBuffers(itemIndices, scores);
+        long stamp = startRead();
+        try {
+            int size;
+            do {
+                FoldedRows<U> items = this.itemRows;
+                int i = items.get(itemId);
+                size = i < 0 ? 0 : similarItems(items, i, itemIndices, scores, itemIndices.length, null);
+            } while ((stamp = retryRead(stamp)) != 0L);
+            return size;
+        } finally {
+            endRead(stamp);
+        }
+    }
+
+    /**
+     * Fills the buffers with similar users and returns the number of users.
+     *
+     * <p>The number of users is at most the length of the buffers. User indices refer to positions in {@link #userIds()}. Nothing is allocated unless the recommender has an index.
+     */
+    public int similarUsers(T userId, int[] userIndices, float[] scores) {
+        checkBuffers(userIndices, scores);
+        long stamp = startRead();
+        try {
+            int size;
+            do {
+                FoldedRows<T> users = this.userRows;
+                int i = users.get(userId);
+                size = i < 0 ? 0 : similarUsers(users, i, userIndices, scores, userIndices.length);
+            } while ((stamp = retryRead(stamp)) != 0L);
+            return size;
+        } finally {
+            endRead(stamp);
+        }
+    }
+
+    /**
+     * Adds a user without refitting, or updates a user who was added this way.
+     *
+     * <p>The user's factors are solved for with item factors fixed, the same way as a step of training. Values are ratings for explicit feedback and counts or other weights for implicit feedback, and unknown items are ignored. Reads that are running keep using the previous factors, so this is safe to call while serving. Users from training can't be folded in.
+     *
+     * <p>Folded-in users aren't added to indexes or precomputed tables until the next fit.
+     */
+    public void foldInUser(T userId, Map<U, Float> values) {
+        synchronized (this.foldInLock) {
+            FoldedRows<T> users = this.userRows;
+            FoldedRows<U> items = this.itemRows;
+            checkFoldIn(users, userId, "User");
+
+            FoldedRows.Row row;
+            long stamp = this.publishLock.readLock();
+            try {
+                // computed by the first fold-in that needs it, then kept up to date by fold-in of items
+                if (this.implicit && items.gram() == null) {
+                    items = items.withGram(gram(this.itemFactors, items));
+                    this.itemRows = items;
+                }
+                row = foldIn(this.itemFactors, items, items.gram(), values);
+            } finally {
+                this.publishLock.unlockRead(stamp);
+            }
+
+            stamp = this.publishLock.writeLock();
+            try {
+                this.userRows = users.put(userId, row);
+            } finally {
+                this.publishLock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Adds an item without refitting, or updates an item that was added this way.
+     *
+     * <p>Values are keyed by user. See {@link #foldInUser(Object, Map)} for details.
+     */
+    public void foldInItem(U itemId, Map<T, Float> values) {
+        synchronized (this.foldInLock) {
+            FoldedRows<T> users = this.userRows;
+            FoldedRows<U> items = this.itemRows;
+            checkFoldIn(items, itemId, "Item");
+
+            FoldedRows.Row row;
+            long stamp = this.publishLock.readLock();
+            try {
+                // computed by the first fold-in that needs it, then kept up to date by fold-in of users
+                if (this.implicit && users.gram() == null) {
+                    users = users.withGram(gram(this.userFactors, users));
+                    this.userRows = users;
+                }
+                row = foldIn(this.userFactors, users, users.gram(), values);
+            } finally {
+                this.publishLock.unlockRead(stamp);
+            }
+
+            stamp = this.publishLock.writeLock();
+            try {
+                this.itemRows = items.put(itemId, row);
+            } finally {
+                this.publishLock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Applies new ratings to a recommender with explicit feedback without refitting.
+     *
+     * <p>Each rating gets the same update as a step of training, continuing from the learning rates kept with {@link RecommenderBuilder#keepLearningRates(boolean)}, and is excluded from userRecs afterwards. Ratings for users or items that weren't in training are skipped, so fold those in instead.
+     *
+     * <p>Changed rows are published together, so reads running at the same time see all of a call's changes or none of them, and calls that change different rows compute their changes at the same time. Indexes and precomputed neighbors aren't updated until the next fit.
+     */
+    public void update(Dataset<T, U> ratings) {
+        if (this.implicit) {
+            throw new UnsupportedOperationException("Updates are only supported for explicit feedback");
+        }
+        TwinLearner learner = this.learner;
+        if (learner == null) {
+            throw new IllegalStateException("Updates need learning rates from keepLearningRates");
+        }
+        if (this.userFactors.readOnly() || this.itemFactors.readOnly()) {
+            throw new UnsupportedOperationException("Memory-mapped recommenders can't be updated");
+        }
+
+        // map ids in the dataset to fitted rows
+        FoldedRows<T> users = this.userRows;
+        FoldedRows<U> items = this.itemRows;
+        int[] userIndices = fittedIndices(ratings.userMap, users);
+        int[] itemIndices = fittedIndices(ratings.itemMap, items);
+
+        CooMatrix data = ratings.data;
+        int[] us = new int[data.size()];
+        int[] vs = new int[data.size()];
+        float[] rs = new float[data.size()];
+        int n = 0;
+        for (int j = 0; j < data.size(); j++) {
+            int u = userIndices[data.rowIndices[j]];
+            int v = itemIndices[data.colIndices[j]];
+            if (u >= 0 && v >= 0) {
+                us[n] = u;
+                vs[n] = v;
+                rs[n] = data.values[j];
+                n++;
+            }
+        }
+        if (n == 0) {
+            return;
+        }
+
+        // rows are updated in local copies, so each one is written once
+        int[] localUsers = unique(us, n);
+        int[] localItems = unique(vs, n);
+        int k = this.userFactors.cols();
+        float[] p = new float[localUsers.length * k];
+        float[] q = new float[localItems.length * k];
+        float[] row = new float[k];
+
+        ReentrantLock[] locks = this.updateLocks;
+        int[] stripes = new int[localUsers.length + localItems.length];
+        for (int c = 0; c < localUsers.length; c++) {
+            stripes[c] = localUsers[c] % UPDATE_LOCKS;
+        }
+        for (int c = 0; c < localItems.length; c++) {
+            stripes[localUsers.length + c] = UPDATE_LOCKS + localItems[c] % UPDATE_LOCKS;
+        }
+        // locks are taken in order so calls can't deadlock
+        stripes = unique(stripes, stripes.length);
+        int locked = 0;
+        try {
+            for (; locked < stripes.length; locked++) {
+                locks[stripes[locked]].lock();
+            }
+
+            for (int c = 0; c < localUsers.length; c++) {
+                this.userFactors.getRow(localUsers[c], row);
+                System.arraycopy(row, 0, p, c * k, k);
+            }
+            for (int c = 0; c < localItems.length; c++) {
+                this.itemFactors.getRow(localItems[c], row);
+                System.arraycopy(row, 0, q, c * k, k);
+            }
+
+            for (int j = 0; j < n; j++) {
+                int pu = Arrays.binarySearch(localUsers, us[j]);
+                int qv = Arrays.binarySearch(localItems, vs[j]);
+                learner.update(p, pu * k, q, qv * k, us[j], vs[j], rs[j], true);
+            }
+
+            // rows, norms, and bounds are published together, so reads never see part of a call
+            long stamp = this.publishLock.writeLock();
+            try {
+                for (int c = 0; c < localUsers.length; c++) {
+                    System.arraycopy(p, c * k, row, 0, k);
+                    if (this.bounds != null) {
+                        this.bounds.updateUser(localUsers[c], row);
+                    }
+                    this.userFactors.setRow(localUsers[c], row);
+                    this.userNorms.set(localUsers[c], 0, (float) Math.sqrt(dot(row, 0, row, 0, k)));
+                }
+                for (int c = 0; c < localItems.length; c++) {
+                    System.arraycopy(q, c * k, row, 0, k);
+                    float norm = (float) Math.sqrt(dot(row, 0, row, 0, k));
+                    if (this.bounds != null) {
+                        this.bounds.updateItem(localItems[c], row, norm);
+                    }
+                    this.itemFactors.setRow(localItems[c], row);
+                    this.itemNorms.set(localItems[c], 0, norm);
+                }
+                this.rated.add(us, vs, n);
+            } finally {
+                this.publishLock.unlockWrite(stamp);
+            }
+        } finally {
+            for (int c = locked - 1; c >= 0; c--) {
+                locks[stripes[c]].unlock();
+            }
+        }
+    }
+
+    /**
+     * Sets the size of the candidate list when searching the indexes for itemRecs and similarUsers, like {@link RecommenderBuilder#indexEfSearch(int)}.
+     *
+     * <p>Higher values improve recall and increase latency, so this can be tuned on a fitted or loaded recommender without refitting. Calls that start afterwards use the new value, and it's saved with the recommender.
+     */
+    public void setIndexEfSearch(int value) {
+        checkEf(value, "efSearch");
+        if (this.userIndex != null) {
+            this.userIndex.setEfSearch(value);
+        }
+        if (this.itemIndex != null) {
+            this.itemIndex.setEfSearch(value);
+        }
+    }
+
+    /**
+     * Sets the number of candidates that userRecs takes from its index, like {@link RecommenderBuilder#indexCandidates(int)}.
+     *
+     * <p>See {@link #setIndexEfSearch(int)} for details.
+     */
+    public void setIndexCandidates(int value) {
+        checkEf(value, "Candidates");
+        if (this.userRecsIndex != null) {
+            this.userRecsIndex.setEfSearch(value);
+        }
+    }
+
+    private static void checkEf(int value, String name) {
+        if (value < 1) {
+            throw new IllegalArgumentException(name + " must be at least 1");
+        }
     }
 
     /**
      * Returns user ids.
      */
     public List<T> userIds() {
-        return this.userMap.ids();
+        return this.userRows.ids();
     }
 
     /**
      * Returns item ids.
      */
     public List<U> itemIds() {
-        return this.itemMap.ids();
+        return this.itemRows.ids();
     }
 
     /**
      * Returns factors for a specific user.
      */
     public Optional<float[]> userFactors(T userId) {
-        return this.userMap.get(userId).map(i -> this.userFactors[i]);
+        return read(() -> {
+            FoldedRows<T> users = this.userRows;
+            int i = users.get(userId);
+            if (i < 0) {
+                return Optional.empty();
+            }
+            return Optional.of(i < users.offset() ? this.userFactors.row(i) : users.row(i).factors.clone());
+        });
     }
 
     /**
      * Returns factors for a specific user.
      */
     public Optional<float[]> itemFactors(U itemId) {
-        return this.itemMap.get(itemId).map(i -> this.itemFactors[i]);
+        return read(() -> {
+            FoldedRows<U> items = this.itemRows;
+            int i = items.get(itemId);
+            if (i < 0) {
+                return Optional.empty();
+            }
+            return Optional.of(i < items.offset() ? this.itemFactors.row(i) : items.row(i).factors.clone());
+        });
     }
 
     /**
@@ -322,147 +1052,1011 @@ public class Recommender<T, U> {
         return this.globalMean;
     }
 
-    private static void leastSquaresCg(LilMatrix cui, float[][] x, float[][] y, float regularization, int factors) {
-        int cgSteps = 3;
-
-        // calculate YtY
-        float[][] yty = new float[factors][factors];
+    private static void leastSquaresCg(CsrMatrix cui, Matrix x, Matrix y, float regularization, int factors, int cgSteps, int threads, Executor executor) {
+        float[] yty = Gramian.compute(y, threads, executor);
         for (int i = 0; i < factors; i++) {
-            for (int j = 0; j < factors; j++) {
-                float sum = 0.0f;
-                for (int k = 0; k < y.length; k++) {
-                    sum += y[k][i] * y[k][j];
+            yty[i * factors + i] += regularization;
+        }
+
+        // rows are independent, so split them across threads
+        // each thread reuses its own scratch space
+        int[] indptr = cui.indptr;
+        int[] indices = cui.indices;
+        float[] confidences = cui.data;
+        Parallel.forRange(threads, executor, cui.rows(), 256, () -> {
+            float[] xi = new float[factors];
+            float[] r = new float[factors];
+            float[] p = new float[factors];
+            float[] ap = new float[factors];
+
+            return (start, end) -> {
+                for (int u = start; u < end; u++) {
+                    // start from previous iteration
+                    x.getRow(u, xi);
+                    cg(yty, y, indices, confidences, indptr[u], indptr[u + 1], cgSteps, xi, r, p, ap);
+                    x.setRow(u, xi);
+                }
+            };
+        });
+    }
+
+    // solves each row exactly with y fixed, for implicit or explicit feedback
+    private static void leastSquaresCholesky(CsrMatrix cui, Matrix x, Matrix y, float regularization, boolean implicit, int factors, int threads, Executor executor) {
+        float[] yty = null;
+        if (implicit) {
+            yty = Gramian.compute(y, threads, executor);
+            for (int i = 0; i < factors; i++) {
+                yty[i * factors + i] += regularization;
+            }
+        }
+
+        float[] gram = yty;
+        int[] indptr = cui.indptr;
+        int[] indices = cui.indices;
+        float[] values = cui.data;
+        Parallel.forRange(threads, executor, cui.rows(), 256, () -> {
+            double[] a = new double[factors * factors];
+            double[] b = new double[factors];
+            float[] row = new float[factors];
+            float[] xi = new float[factors];
+
+            return (start, end) -> {
+                for (int u = start; u < end; u++) {
+                    if (implicit) {
+                        choleskyImplicit(gram, y, indices, values, indptr[u], indptr[u + 1], a, b, row, xi);
+                    } else {
+                        choleskyExplicit(y, indices, values, indptr[u], indptr[u + 1], regularization, a, b, row, xi);
+                    }
+                    x.setRow(u, xi);
                 }
-                yty[i][j] = sum;
+            };
+        });
+    }
+
+    // solves (YtY + Yt(Cu - I)Y)xi = YtCuPu for one row, where yty includes regularization
+    private static void choleskyImplicit(float[] yty, Matrix y, int[] indices, float[] confidences, int start, int end, double[] a, double[] b, float[] row, float[] xi) {
+        int factors = xi.length;
+        for (int i = 0; i < factors; i++) {
+            for (int j = 0; j <= i; j++) {
+                a[i * factors + j] = yty[i * factors + j];
             }
-            yty[i][i] += regularization;
+            b[i] = 0.0;
         }
+        for (int n = start; n < end; n++) {
+            y.getRow(indices[n], row);
+            addOuter(a, b, confidences[n] - 1.0f, confidences[n], row);
+        }
+        choleskySolve(a, b, factors);
+        for (int i = 0; i < factors; i++) {
+            xi[i] = (float) b[i];
+        }
+    }
 
-        for (int u = 0; u < cui.rowList.size(); u++) {
-            List<SparseRow> rowVec = cui.rowList.get(u);
+    // solves (sum of yyt + n lambda I)x = sum of ry for one row, the stationary point of the explicit training loss
+    private static void choleskyExplicit(Matrix y, int[] indices, float[] values, int start, int end, float regularization, double[] a, double[] b, float[] row, float[] xi) {
+        int factors = xi.length;
+        Arrays.fill(a, 0.0);
+        Arrays.fill(b, 0.0);
+        for (int n = start; n < end; n++) {
+            y.getRow(indices[n], row);
+            addOuter(a, b, 1.0f, values[n], row);
+        }
+        for (int i = 0; i < factors; i++) {
+            a[i * factors + i] += (end - start) * regularization;
+        }
+        choleskySolve(a, b, factors);
+        for (int i = 0; i < factors; i++) {
+            xi[i] = (float) b[i];
+        }
+    }
 
-            // start from previous iteration
-            float[] xi = x[u];
+    // adds weight times the lower triangle of xxt to a and value times x to b
+    private static void addOuter(double[] a, double[] b, float weight, float value, float[] x) {
+        int k = x.length;
+        for (int i = 0; i < k; i++) {
+            b[i] += value * x[i];
+            for (int j = 0; j <= i; j++) {
+                a[i * k + j] += weight * x[i] * x[j];
+            }
+        }
+    }
 
-            // calculate residual r = (YtCuPu - (YtCuY.dot(Xu), without computing YtCuY
-            float[] r = new float[yty.length];
-            for (int i = 0; i < yty.length; i++) {
-                r[i] = -dot(yty[i], xi);
+    private static float rmse(CsrMatrix r, Matrix x, Matrix y) {
+        float[] row = new float[x.cols()];
+        double sum = 0.0;
+        for (int u = 0; u < r.rows(); u++) {
+            x.getRow(u, row);
+            for (int n = r.indptr[u]; n < r.indptr[u + 1]; n++) {
+                float e = r.data[n] - y.dot(r.indices[n], row);
+                sum += e * e;
             }
-            for (SparseRow row : rowVec) {
-                int i = row.index;
-                float confidence = row.confidence;
-                scaledAdd(r, confidence - (confidence - 1.0f) * dot(y[i], xi), y[i]);
+        }
+        return (float) Math.sqrt(sum / r.indices.length);
+    }
+
+    // solves (YtY + Yt(Cu - I)Y)xi = YtCuPu for one row, starting from xi
+    // the rows of Y and confidences are given by indices and confidences in [start, end)
+    private static void cg(float[] yty, Matrix y, int[] indices, float[] confidences, int start, int end, int steps, float[] xi, float[] r, float[] p, float[] ap) {
+        int factors = xi.length;
+
+        // calculate residual r = (YtCuPu - (YtCuY.dot(Xu), without computing YtCuY
+        for (int i = 0; i < factors; i++) {
+            r[i] = -dot(yty, i * factors, xi, 0, factors);
+        }
+        for (int n = start; n < end; n++) {
+            float confidence = confidences[n];
+            y.addRowTo(indices[n], confidence - (confidence - 1.0f) * y.dot(indices[n], xi), r);
+        }
+
+        System.arraycopy(r, 0, p, 0, factors);
+        float rsold = dot(r, 0, r, 0, factors);
+
+        for (int j = 0; j < steps; j++) {
+            // calculate Ap = YtCuYp - without actually calculating YtCuY
+            for (int i = 0; i < factors; i++) {
+                ap[i] = dot(yty, i * factors, p, 0, factors);
+            }
+            for (int n = start; n < end; n++) {
+                y.addRowTo(indices[n], (confidences[n] - 1.0f) * y.dot(indices[n], p), ap);
             }
 
-            float[] p = Arrays.copyOf(r, r.length);
-            float rsold = dot(r, r);
+            // standard CG update
+            float alpha = rsold / dot(p, 0, ap, 0, factors);
+            scaledAdd(xi, 0, alpha, p, 0, factors);
+            scaledAdd(r, 0, -alpha, ap, 0, factors);
+            float rsnew = dot(r, 0, r, 0, factors);
 
-            for (int j = 0; j < cgSteps; j++) {
-                // calculate Ap = YtCuYp - without actually calculating YtCuY
-                float[] ap = new float[yty.length];
-                for (int i = 0; i < yty.length; i++) {
-                    ap[i] = dot(yty[i], p);
-                }
-                for (SparseRow row : rowVec) {
-                    int i = row.index;
-                    float confidence = row.confidence;
-                    scaledAdd(ap, (confidence - 1.0f) * dot(y[i], p), y[i]);
-                }
+            if (rsnew < 1e-20) {
+                break;
+            }
 
-                // standard CG update
-                float alpha = rsold / dot(p, ap);
-                scaledAdd(xi, alpha, p);
-                scaledAdd(r, -alpha, ap);
-                float rsnew = dot(r, r);
+            float rs = rsnew / rsold;
+            for (int i = 0; i < factors; i++) {
+                p[i] = r[i] + rs * p[i];
+            }
+            rsold = rsnew;
+        }
+    }
 
-                if (rsnew < 1e-20) {
-                    break;
+    // calculates YtY including rows added by fold-in
+    private static float[] gram(Matrix y, FoldedRows<?> rows) {
+        float[] yty = Gramian.compute(y, 1, null);
+        for (int k = rows.offset(); k < rows.rows(); k++) {
+            addOuter(yty, 1.0f, rows.row(k).factors);
+        }
+        return yty;
+    }
+
+    static void addOuter(float[] gram, float a, float[] x) {
+        for (int i = 0; i < x.length; i++) {
+            scaledAdd(gram, i * x.length, a * x[i], x, 0, x.length);
+        }
+    }
+
+    private static int block(CooMatrix trainData, int j, int blocks) {
+        return (trainData.rowIndices[j] % blocks) * blocks + trainData.colIndices[j] % blocks;
+    }
+
+    // each round, row t of the grid updates block (t, (t + offset) % blocks)
+    // blocks in a round share no users or items, so they're updated in parallel without races
+    // the schedule only depends on the seed and the number of blocks, so results don't depend on threads
+    private static double sgdBlocks(CooMatrix trainData, int[] blockStarts, int[] blockRatings, int blocks, TwinLearner learner, Matrix userFactors, Matrix itemFactors, boolean fast, Random prng, int threads, Executor executor) {
+        int[] offsets = new int[blocks];
+        for (int b = 0; b < blocks; b++) {
+            offsets[b] = b;
+        }
+        shuffle(offsets, 0, blocks, prng);
+
+        long[] seeds = new long[blocks * blocks];
+        for (int b = 0; b < seeds.length; b++) {
+            seeds[b] = prng.nextLong();
+        }
+
+        // each row of the grid is updated by one thread per round, and rounds run one after another
+        double[] losses = new double[blocks];
+        for (int offset : offsets) {
+            Parallel.forRange(threads, executor, blocks, 1, () -> {
+                float[] p = new float[userFactors.cols()];
+                float[] q = new float[itemFactors.cols()];
+                return (start, end) -> {
+                    for (int t = start; t < end; t++) {
+                        int b = t * blocks + (t + offset) % blocks;
+
+                        // shuffle for each iteration
+                        shuffle(blockRatings, blockStarts[b], blockStarts[b + 1], new Random(seeds[b]));
+
+                        double loss = 0.0;
+                        for (int n = blockStarts[b]; n < blockStarts[b + 1]; n++) {
+                            int j = blockRatings[n];
+                            int u = trainData.rowIndices[j];
+                            int v = trainData.colIndices[j];
+                            float e = sgdUpdate(learner, userFactors, itemFactors, u, v, trainData.values[j], fast, p, q);
+                            loss += e * e;
+                        }
+                        losses[t] += loss;
+                    }
+                };
+            });
+        }
+
+        // summed in the same order for any number of threads
+        double trainLoss = 0.0;
+        for (double loss : losses) {
+            trainLoss += loss;
+        }
+        return trainLoss;
+    }
+
+    // heap rows are updated in place, and other rows are copied through p and q
+    private static float sgdUpdate(TwinLearner learner, Matrix userFactors, Matrix itemFactors, int u, int v, float r, boolean fast, float[] p, float[] q) {
+        if (userFactors instanceof HeapMatrix && itemFactors instanceof HeapMatrix) {
+            HeapMatrix pm = (HeapMatrix) userFactors;
+            HeapMatrix qm = (HeapMatrix) itemFactors;
+            return learner.update(pm.data(u), pm.offset(u), qm.data(v), qm.offset(v), u, v, r, fast);
+        }
+
+        userFactors.getRow(u, p);
+        itemFactors.getRow(v, q);
+        float e = learner.update(p, 0, q, 0, u, v, r, fast);
+        userFactors.setRow(u, p);
+        itemFactors.setRow(v, q);
+        return e;
+    }
+
+    private <V> void checkFoldIn(FoldedRows<V> rows, V id, String name) {
+        if (id == null) {
+            throw new IllegalArgumentException(name + " id can't be null");
+        }
+        int i = rows.get(id);
+        if (i >= 0 && i < rows.offset()) {
+            throw new IllegalArgumentException(name + " was in training data");
+        }
+        if (Float.isNaN(this.regularization)) {
+            throw new UnsupportedOperationException("Model was saved without fit options");
+        }
+    }
+
+    // solves for a row's factors with the other side fixed
+    private <V> FoldedRows.Row foldIn(Matrix factors, FoldedRows<V> rows, float[] gram, Map<V, Float> values) {
+        // sort by index, with the value in the low bits
+        long[] keys = new long[values.size()];
+        int n = 0;
+        for (Map.Entry<V, Float> entry : values.entrySet()) {
+            int j = rows.get(entry.getKey());
+            if (j >= 0) {
+                keys[n++] = ((long) j << 32) | (Float.floatToRawIntBits(entry.getValue()) & 0xffffffffL);
+            }
+        }
+        Arrays.sort(keys, 0, n);
+
+        int k = factors.cols();
+        int[] indices = new int[n];
+        float[] v = new float[n];
+        HeapMatrix y = new HeapMatrix(n, k);
+        float[] row = new float[k];
+        for (int c = 0; c < n; c++) {
+            indices[c] = (int) (keys[c] >>> 32);
+            v[c] = Float.intBitsToFloat((int) keys[c]);
+            if (indices[c] < rows.offset()) {
+                factors.getRow(indices[c], row);
+                y.setRow(c, row);
+            } else {
+                y.setRow(c, rows.row(indices[c]).factors);
+            }
+        }
+
+        float[] x = new float[k];
+        if (n == 0) {
+            return new FoldedRows.Row(x, indices);
+        }
+
+        if (this.implicit) {
+            // same as a row of leastSquaresCg, but starting from zero
+            float[] yty = gram.clone();
+            for (int i = 0; i < k; i++) {
+                yty[i * k + i] += this.regularization;
+            }
+            float[] confidences = new float[n];
+            int[] local = new int[n];
+            for (int c = 0; c < n; c++) {
+                confidences[c] = 1.0f + this.alpha * v[c];
+                local[c] = c;
+            }
+            cg(yty, y, local, confidences, 0, n, FOLD_IN_CG_STEPS, x, new float[k], new float[k], new float[k]);
+        } else {
+            int[] local = new int[n];
+            for (int c = 0; c < n; c++) {
+                local[c] = c;
+            }
+            choleskyExplicit(y, local, v, 0, n, this.regularization, new double[k * k], new double[k], row, x);
+        }
+        return new FoldedRows.Row(x, indices);
+    }
+
+    // solves ax = b in place for a symmetric positive definite matrix given by its lower triangle
+    // directions without a positive pivot get zeros, which only happens without regularization
+    private static void choleskySolve(double[] a, double[] b, int n) {
+        for (int j = 0; j < n; j++) {
+            double d = a[j * n + j];
+            for (int p = 0; p < j; p++) {
+                d -= a[j * n + p] * a[j * n + p];
+            }
+            d = d > 0.0 ? Math.sqrt(d) : Double.POSITIVE_INFINITY;
+            a[j * n + j] = d;
+            for (int i = j + 1; i < n; i++) {
+                double s = a[i * n + j];
+                for (int p = 0; p < j; p++) {
+                    s -= a[i * n + p] * a[j * n + p];
                 }
+                a[i * n + j] = s / d;
+            }
+        }
+
+        // forward substitution with L, then back substitution with Lt
+        for (int i = 0; i < n; i++) {
+            double s = b[i];
+            for (int p = 0; p < i; p++) {
+                s -= a[i * n + p] * b[p];
+            }
+            b[i] = s / a[i * n + i];
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            double s = b[i];
+            for (int p = i + 1; p < n; p++) {
+                s -= a[p * n + i] * b[p];
+            }
+            b[i] = s / a[i * n + i];
+        }
+    }
+
+    // returns the fitted row of each id in a map, or -1
+    private static <V> int[] fittedIndices(IdMap<V> map, FoldedRows<V> rows) {
+        int[] indices = new int[map.size()];
+        for (int i = 0; i < indices.length; i++) {
+            int j = rows.get(map.lookup(i));
+            indices[i] = j < rows.offset() ? j : -1;
+        }
+        return indices;
+    }
 
-                float rs = rsnew / rsold;
-                for (int i = 0; i < p.length; i++) {
-                    p[i] = r[i] + rs * p[i];
+    // returns the sorted distinct values in the first n elements
+    private static int[] unique(int[] values, int n) {
+        int[] sorted = Arrays.copyOf(values, n);
+        Arrays.sort(sorted);
+        int size = 0;
+        for (int j = 0; j < n; j++) {
+            if (j == 0 || sorted[j] != sorted[j - 1]) {
+                sorted[size++] = sorted[j];
+            }
+        }
+        return Arrays.copyOf(sorted, size);
+    }
+
+    private static <T, U> Recommender<T, U> load(Path path, boolean mapped) throws IOException {
+        float globalMean = Float.NaN;
+        IdMap<T> userMap = null;
+        IdMap<U> itemMap = null;
+        RatedItems rated = null;
+        Matrix userFactors = null;
+        Matrix itemFactors = null;
+        Matrix userNorms = null;
+        Matrix itemNorms = null;
+        HnswIndex userIndex = null;
+        HnswIndex itemIndex = null;
+        HnswIndex userRecsIndex = null;
+        NormBounds bounds = null;
+        NeighborTable itemNeighbors = null;
+        FoldedRows<T> userRows = null;
+        FoldedRows<U> itemRows = null;
+        boolean implicit = false;
+        float regularization = Float.NaN;
+        float alpha = Float.NaN;
+        TwinLearner learner = null;
+
+        try (ModelFile.Reader in = new ModelFile.Reader(path, mapped)) {
+            int tag;
+            while ((tag = in.nextSection()) != ModelFile.END) {
+                switch (tag) {
+                    case ModelFile.METADATA:
+                        globalMean = in.getFloat();
+                        break;
+                    case ModelFile.USER_IDS:
+                        userMap = IdMap.read(in);
+                        break;
+                    case ModelFile.ITEM_IDS:
+                        itemMap = IdMap.read(in);
+                        break;
+                    case ModelFile.RATED:
+                        rated = RatedItems.read(in);
+                        break;
+                    case ModelFile.USER_FACTORS:
+                        userFactors = in.getMatrix();
+                        break;
+                    case ModelFile.ITEM_FACTORS:
+                        itemFactors = in.getMatrix();
+                        break;
+                    case ModelFile.USER_NORMS:
+                        userNorms = in.getMatrix();
+                        break;
+                    case ModelFile.ITEM_NORMS:
+                        itemNorms = in.getMatrix();
+                        break;
+                    case ModelFile.USER_INDEX:
+                        if (userFactors == null || userNorms == null) {
+                            throw new IOException("Index before factors");
+                        }
+                        userIndex = HnswIndex.read(in, userFactors, userNorms);
+                        break;
+                    case ModelFile.ITEM_INDEX:
+                        if (itemFactors == null || itemNorms == null) {
+                            throw new IOException("Index before factors");
+                        }
+                        itemIndex = HnswIndex.read(in, itemFactors, itemNorms);
+                        break;
+                    case ModelFile.USER_RECS_INDEX:
+                        if (itemFactors == null || itemNorms == null) {
+                            throw new IOException("Index before factors");
+                        }
+                        userRecsIndex = HnswIndex.read(in, itemFactors, itemNorms);
+                        break;
+                    case ModelFile.NORM_BOUNDS:
+                        bounds = NormBounds.read(in);
+                        break;
+                    case ModelFile.ITEM_NEIGHBORS:
+                        itemNeighbors = NeighborTable.read(in);
+                        break;
+                    case ModelFile.FIT_OPTIONS:
+                        implicit = in.getByte() != 0;
+                        regularization = in.getFloat();
+                        alpha = in.getFloat();
+                        break;
+                    case ModelFile.LEARNER:
+                        learner = TwinLearner.read(in);
+                        break;
+                    case ModelFile.FOLDED_USERS:
+                        if (userMap == null) {
+                            throw new IOException("Folded rows before ids");
+                        }
+                        userRows = new FoldedRows<T>(userMap).read(in);
+                        break;
+                    case ModelFile.FOLDED_ITEMS:
+                        if (itemMap == null) {
+                            throw new IOException("Folded rows before ids");
+                        }
+                        itemRows = new FoldedRows<U>(itemMap).read(in);
+                        break;
+                    default:
+                        // ignore unknown sections
+                        break;
                 }
-                rsold = rsnew;
+                in.skipSection();
+            }
+        }
+
+        if (userMap == null || itemMap == null || rated == null || userFactors == null || itemFactors == null || userNorms == null || itemNorms == null) {
+            throw new IOException("Incomplete model file");
+        }
+
+        if (userRows == null) {
+            userRows = new FoldedRows<T>(userMap);
+        }
+        if (itemRows == null) {
+            itemRows = new FoldedRows<U>(itemMap);
+        }
+        return new Recommender<T, U>(userRows, itemRows, rated, globalMean, userFactors, itemFactors, userNorms, itemNorms, userIndex, itemIndex, userRecsIndex, bounds, itemNeighbors, implicit, regularization, alpha, learner);
+    }
+
+    static Matrix createMatrix(int rows, int cols, boolean offHeap) {
+        return offHeap ? BufferMatrix.allocateDirect(rows, cols) : new HeapMatrix(rows, cols);
+    }
+
+    // copies the factors of ids in a previous recommender and returns their previous indices
+    private static <V> int[] warmStart(IdMap<V> map, FoldedRows<?> previousRows, Matrix previousFactors, Matrix factors) {
+        @SuppressWarnings("unchecked")
+        FoldedRows<V> rows = (FoldedRows<V>) previousRows;
+        int[] sources = new int[map.size()];
+        float[] row = new float[factors.cols()];
+        for (int i = 0; i < sources.length; i++) {
+            int j = rows.get(map.lookup(i));
+            sources[i] = j;
+            if (j >= rows.offset()) {
+                factors.setRow(i, rows.row(j).factors);
+            } else if (j >= 0) {
+                previousFactors.getRow(j, row);
+                factors.setRow(i, row);
             }
         }
+        return sources;
     }
 
-    private static float[][] createFactors(int rows, int cols, Random prng, float endRange) {
-        float[][] m = new float[rows][cols];
+    private static Matrix createFactors(int rows, int cols, Random prng, float endRange, boolean offHeap) {
+        Matrix m = createMatrix(rows, cols, offHeap);
+        float[] row = new float[cols];
         for (int i = 0; i < rows; i++) {
             for (int j = 0; j < cols; j++) {
-                m[i][j] = prng.nextFloat() * endRange;
+                row[j] = prng.nextFloat() * endRange;
             }
+            m.setRow(i, row);
         }
         return m;
     }
 
-    private <V> List<Rec<V>> similar(IdMap<V> map, float[][] factors, float[] norms, V id, int count) {
-        Optional<Integer> oi = map.get(id);
-        if (!oi.isPresent()) {
+    private List<Rec<U>> userRecs(T userId, FoldedRows<U> items, int count, IntPredicate filter) {
+        FoldedRows<T> users = this.userRows;
+        int i = users.get(userId);
+        if (i < 0) {
             return new ArrayList<>();
         }
-        int i = oi.get();
 
-        float[] f = factors[i];
-        float norm = norms[i];
-        float eps = Math.ulp(0.0f);
-        List<Rec<Integer>> predictions = new ArrayList<>(factors.length);
-        for (int j = 0; j < factors.length; j++) {
-            predictions.add(new Rec<Integer>(j, dot(f, factors[j]) / Math.max(norm * norms[j], eps)));
+        int capacity = Math.max(Math.min(count, items.rows()), 0);
+        int[] ids = new int[capacity];
+        float[] scores = new float[capacity];
+        int size = userRecs(users, items, i, ids, scores, capacity, filter);
+        return recs(items, ids, scores, size);
+    }
+
+    private List<Rec<U>> itemRecs(U itemId, FoldedRows<U> items, int count, IntPredicate filter) {
+        int i = items.get(itemId);
+        if (i < 0) {
+            return new ArrayList<>();
         }
-        predictions.sort(Comparator.comparing(v -> -v.score));
 
-        List<Rec<V>> recs = new ArrayList<>();
-        for (Rec<Integer> v : predictions) {
-            if (v.id == i) {
+        int capacity = Math.max(Math.min(count, items.rows()), 0);
+        int[] ids = new int[capacity];
+        float[] scores = new float[capacity];
+        int size = similarItems(items, i, ids, scores, capacity, filter);
+        return recs(items, ids, scores, size);
+    }
+
+    // items that don't match a filter are skipped, and filtered results skip the index so they stay exact
+    private int userRecs(FoldedRows<T> users, FoldedRows<U> items, int i, int[] ids, float[] scores, int count, IntPredicate filter) {
+        // users who were folded in have their rated items in one sorted run
+        RatedItems rated = this.rated;
+        Scratch scratch = Scratch.acquire();
+        try {
+            int[] run;
+            float[] f;
+            float norm;
+            if (i < users.offset()) {
+                run = null;
+                f = scratch.row(this.userFactors.cols());
+                this.userFactors.getRow(i, f);
+                norm = this.userNorms.get(i, 0);
+            } else {
+                FoldedRows.Row row = users.row(i);
+                run = row.rated;
+                f = row.factors;
+                norm = row.norm;
+            }
+
+            int size;
+            if (this.userRecsIndex != null && filter == null) {
+                size = userRecs(this.userRecsIndex, rated, i, run, f, ids, scores, count);
+            } else if (this.bounds != null) {
+                size = userRecs(this.bounds, rated, i, run, f, norm, ids, scores, count, filter);
+            } else {
+                size = scanUserRecs(rated, i, run, f, ids, scores, count, filter, scratch.block);
+            }
+            size = addFoldedItems(items, i, run, f, ids, scores, size, count, filter);
+            TopK.sort(ids, scores, size);
+            return size;
+        } finally {
+            scratch.release();
+        }
+    }
+
+    // returns the heap of fitted items, which is sorted by the caller
+    private int scanUserRecs(RatedItems ratedItems, int i, int[] run, float[] f, int[] ids, float[] scores, int count, IntPredicate filter, float[] block) {
+        Matrix items = this.itemFactors;
+
+        // skip rated items with a bit test or a merge walk over sorted items
+        // and items added after fitting with a second merge walk
+        long[] bits = run == null ? ratedItems.bitset(i) : null;
+        int[] rated = run == null ? ratedItems.indices() : run;
+        int next = run == null ? ratedItems.start(i) : 0;
+        int end = run == null ? ratedItems.end(i) : run.length;
+        int[] added = run == null ? ratedItems.added(i) : RatedItems.NONE;
+        int nextAdded = 0;
+
+        // items are scored four at a time, which is faster than skipping rated items first
+        int rows = items.rows();
+        int size = 0;
+        for (int start = 0; start < rows; start += 4) {
+            int n = Math.min(rows - start, 4);
+            if (n == 4) {
+                items.dot4(start, f, block);
+            } else {
+                for (int k = 0; k < n; k++) {
+                    block[k] = items.dot(start + k, f);
+                }
+            }
+
+            for (int k = 0; k < n; k++) {
+                int j = start + k;
+                if (bits != null) {
+                    if ((bits[j >>> 6] & (1L << j)) != 0) {
+                        continue;
+                    }
+                } else if (next < end && rated[next] == j) {
+                    next++;
+                    continue;
+                }
+                if (nextAdded < added.length && added[nextAdded] == j) {
+                    nextAdded++;
+                    continue;
+                }
+                // filters can be costly, like a lookup of the id, so only test items that would make the results
+                if (filter != null && (!TopK.accepts(ids, scores, size, count, j, block[k]) || !filter.test(j))) {
+                    continue;
+                }
+                size = TopK.push(ids, scores, size, count, j, block[k]);
+            }
+        }
+        return size;
+    }
+
+    // visits items by decreasing norm and stops once no remaining item can make the results
+    private int userRecs(NormBounds bounds, RatedItems ratedItems, int i, int[] run, float[] f, float norm, int[] ids, float[] scores, int count, IntPredicate filter) {
+        if (count == 0) {
+            return 0;
+        }
+
+        Matrix items = this.itemFactors;
+        int prefix = NormBounds.prefix(f.length);
+        float tail = NormBounds.tail(f);
+        float slack = NormBounds.slack(f.length);
+        float growth = bounds.growth;
+
+        // items come in norm order, so search the sorted run of light raters instead of building a bitset
+        long[] bits = run == null ? ratedItems.bitset(i) : null;
+        int[] rated = run == null ? ratedItems.indices() : run;
+        int start = run == null ? ratedItems.start(i) : 0;
+        int end = run == null ? ratedItems.end(i) : run.length;
+        int[] added = run == null ? ratedItems.added(i) : RatedItems.NONE;
+
+        int[] order = bounds.itemOrder;
+        float[] orderNorms = bounds.itemOrderNorms;
+        int size = 0;
+        for (int n = 0; n < order.length; n++) {
+            int j = order[n];
+            if (bits != null ? (bits[j >>> 6] & (1L << j)) != 0 : Arrays.binarySearch(rated, start, end, j) >= 0) {
+                continue;
+            }
+            if (added.length > 0 && Arrays.binarySearch(added, j) >= 0) {
                 continue;
             }
+            if (size == count) {
+                float product = norm * orderNorms[n] * growth;
+                if (product + slack * product < scores[0]) {
+                    break;
+                }
+                if (prefix > 0 && items.dot(j, f, 0, prefix) + tail * bounds.itemTails.get(j, 0) + slack * product < scores[0]) {
+                    continue;
+                }
+            }
+            float score = items.dot(j, f);
+            if (filter != null && (!TopK.accepts(ids, scores, size, count, j, score) || !filter.test(j))) {
+                continue;
+            }
+            size = TopK.push(ids, scores, size, count, j, score);
+        }
+        return size;
+    }
 
-            recs.add(new Rec<V>(map.lookup(v.id), v.score));
+    // candidates are scored with exact inner products by the search
+    // rated items are removed afterwards, so search again with more candidates if too few are left
+    private int userRecs(HnswIndex index, RatedItems ratedItems, int i, int[] run, float[] f, int[] ids, float[] scores, int count) {
+        int items = this.itemFactors.rows();
+        int ef = Math.min(Math.max(index.efSearch(), count), items);
+        while (true) {
+            int[] candidates = new int[ef];
+            float[] candidateScores = new float[ef];
+            int n = index.search(f, ef, candidates, candidateScores);
+
+            int size = 0;
+            for (int c = 0; c < n; c++) {
+                if (!(run == null ? ratedItems.contains(i, candidates[c]) : Arrays.binarySearch(run, candidates[c]) >= 0)) {
+                    size = TopK.push(ids, scores, size, count, candidates[c], candidateScores[c]);
+                }
+            }
 
-            if (recs.size() == count) {
-                break;
+            if (size == count || n < ef || ef == items) {
+                return size;
             }
+            ef = (int) Math.min(2L * ef, items);
         }
-        return recs;
     }
 
-    private static float[] norms(float[][] factors) {
-        float[] norms = new float[factors.length];
-        for (int i = 0; i < factors.length; i++) {
-            float[] row = factors[i];
-            float norm = 0.0f;
-            for (float v : row) {
-                norm += v * v;
+    // items added by fold-in are scored after the fitted items
+    private static int addFoldedItems(FoldedRows<?> items, int i, int[] run, float[] f, int[] ids, float[] scores, int size, int count, IntPredicate filter) {
+        for (int j = items.offset(); j < items.rows(); j++) {
+            FoldedRows.Row item = items.row(j);
+            if (item.rated(i) || (run != null && Arrays.binarySearch(run, j) >= 0) || (filter != null && !filter.test(j))) {
+                continue;
             }
-            norms[i] = (float) Math.sqrt(norm);
+            size = TopK.push(ids, scores, size, count, j, dot(item.factors, 0, f, 0, f.length));
         }
-        return norms;
+        return size;
+    }
+
+    private int similarUsers(FoldedRows<T> users, int i, int[] ids, float[] scores, int count) {
+        return similar(this.userFactors, this.userNorms, this.userIndex, this.bounds == null ? null : this.bounds.userTails, users, i, ids, scores, count, null);
     }
 
-    private static float dot(float[] a, float[] b) {
-        float sum = 0.0f;
-        for (int i = 0; i < a.length; i++) {
-            sum += a[i] * b[i];
+    // precomputed neighbors are a slice lookup
+    private int similarItems(FoldedRows<U> items, int i, int[] ids, float[] scores, int count, IntPredicate filter) {
+        if (this.itemNeighbors != null && count <= this.itemNeighbors.n() && i < items.offset() && filter == null) {
+            int size = this.itemNeighbors.get(i, ids, scores, count);
+            if (items.added() == 0) {
+                return size;
+            }
+            Scratch scratch = Scratch.acquire();
+            try {
+                float[] f = scratch.row(this.itemFactors.cols());
+                this.itemFactors.getRow(i, f);
+                size = heapify(ids, scores, size, count);
+                size = addFoldedSimilar(items, i, f, this.itemNorms.get(i, 0), ids, scores, size, count, null);
+                TopK.sort(ids, scores, size);
+                return size;
+            } finally {
+                scratch.release();
+            }
         }
-        return sum;
+        return similar(this.itemFactors, this.itemNorms, filter == null ? this.itemIndex : null, this.bounds == null ? null : this.bounds.itemTails, items, i, ids, scores, count, filter);
     }
 
-    private static void scaledAdd(float[] x, float a, float[] v) {
-        for (int i = 0; i < x.length; i++) {
-            x[i] += a * v[i];
+    private static int similar(Matrix factors, Matrix norms, HnswIndex index, Matrix tails, FoldedRows<?> rows, int i, int[] ids, float[] scores, int count, IntPredicate filter) {
+        boolean fitted = i < rows.offset();
+        Scratch scratch = Scratch.acquire();
+        try {
+            float[] f;
+            if (fitted) {
+                f = scratch.row(factors.cols());
+                factors.getRow(i, f);
+            } else {
+                f = rows.row(i).factors;
+            }
+            float norm = fitted ? norms.get(i, 0) : rows.row(i).norm;
+            float[] query = null;
+            if (index != null) {
+                query = fitted ? index.query(i) : normalize(f, norm);
+            }
+            return similar(factors, norms, index, tails, rows, f, norm, query, i, 1, ids, scores, count, filter);
+        } finally {
+            scratch.release();
         }
     }
 
-    private static List<Integer> sample(Random prng, int n) {
-        List<Integer> v = new ArrayList<>(n);
-        for (int i = 0; i < n; i++) {
-            v.add(i);
+    // scores rows by cosine similarity with f, skipping row i, and query is f normalized for the index
+    // excluded is the number of rows that can't be results, so the index finds enough candidates
+    private static int similar(Matrix factors, Matrix norms, HnswIndex index, Matrix tails, FoldedRows<?> rows, float[] f, float norm, float[] query, int i, int excluded, int[] ids, float[] scores, int count, IntPredicate filter) {
+        float eps = Math.ulp(0.0f);
+        int size = 0;
+
+        if (index != null) {
+            // search the graph for candidates, then score them the same way as a scan
+            int ef = Math.max(index.efSearch(), (int) Math.min((long) count + excluded, factors.rows()));
+            int[] candidates = new int[ef];
+            int n = index.search(query, ef, candidates, new float[ef]);
+            for (int c = 0; c < n; c++) {
+                int j = candidates[c];
+                if (j == i || (filter != null && !filter.test(j))) {
+                    continue;
+                }
+                float score = factors.dot(j, f) / Math.max(norm * norms.get(j, 0), eps);
+                size = TopK.push(ids, scores, size, count, j, score);
+            }
+        } else {
+            // cosine similarity is bounded by 1, so only partial dot products help
+            int prefix = tails == null ? 0 : NormBounds.prefix(f.length);
+            float tail = NormBounds.tail(f);
+            float slack = NormBounds.slack(f.length);
+
+            for (int j = 0; j < factors.rows(); j++) {
+                if (j == i) {
+                    continue;
+                }
+                float product = norm * norms.get(j, 0);
+                float denom = Math.max(product, eps);
+                if (prefix > 0 && size == count && count > 0) {
+                    float bound = factors.dot(j, f, 0, prefix) + tail * tails.get(j, 0) + slack * product;
+                    if (bound / denom < scores[0]) {
+                        continue;
+                    }
+                }
+                float score = factors.dot(j, f) / denom;
+                if (filter != null && (!TopK.accepts(ids, scores, size, count, j, score) || !filter.test(j))) {
+                    continue;
+                }
+                size = TopK.push(ids, scores, size, count, j, score);
+            }
+        }
+
+        size = addFoldedSimilar(rows, i, f, norm, ids, scores, size, count, filter);
+        TopK.sort(ids, scores, size);
+        return size;
+    }
+
+    private static float[] normalize(float[] f, float norm) {
+        float[] query = f.clone();
+        float scale = norm > 0.0f ? 1.0f / norm : 0.0f;
+        for (int d = 0; d < query.length; d++) {
+            query[d] *= scale;
+        }
+        return query;
+    }
+
+    private static int addFoldedSimilar(FoldedRows<?> rows, int i, float[] f, float norm, int[] ids, float[] scores, int size, int count, IntPredicate filter) {
+        float eps = Math.ulp(0.0f);
+        for (int j = rows.offset(); j < rows.rows(); j++) {
+            if (j == i || (filter != null && !filter.test(j))) {
+                continue;
+            }
+            FoldedRows.Row row = rows.row(j);
+            float score = dot(row.factors, 0, f, 0, f.length) / Math.max(norm * row.norm, eps);
+            size = TopK.push(ids, scores, size, count, j, score);
+        }
+        return size;
+    }
+
+    // turns sorted results back into a heap so more candidates can be added
+    private static int heapify(int[] ids, float[] scores, int size, int count) {
+        int n = 0;
+        for (int k = 0; k < size; k++) {
+            n = TopK.push(ids, scores, n, count, ids[k], scores[k]);
+        }
+        return n;
+    }
+
+    // fitted users are scored in blocks, and users who were folded in one at a time
+    private void batchUserRecs(FoldedRows<T> users, FoldedRows<U> items, int[] indices, int count, int[][] ids, float[][] scores, int[] sizes, int threads) {
+        RatedItems rated = this.rated;
+        int[] fitted = indices.clone();
+        boolean single = false;
+        for (int k = 0; k < fitted.length; k++) {
+            int i = fitted[k];
+            if (i >= users.offset()) {
+                fitted[k] = -1;
+                single = true;
+            }
+        }
+        BatchRecs.run(this.userFactors, this.itemFactors, rated, fitted, count, ids, scores, sizes, threads);
+
+        if (!single && items.added() == 0) {
+            return;
+        }
+        float[] block = new float[4];
+        for (int k = 0; k < indices.length; k++) {
+            int i = indices[k];
+            if (i < 0) {
+                continue;
+            }
+
+            int size;
+            if (fitted[k] < 0) {
+                int[] run = users.row(i).rated;
+                float[] f = users.row(i).factors;
+                ids[k] = new int[count];
+                scores[k] = new float[count];
+                size = scanUserRecs(rated, i, run, f, ids[k], scores[k], count, null, block);
+                size = addFoldedItems(items, i, run, f, ids[k], scores[k], size, count, null);
+            } else if (items.added() > 0) {
+                size = heapify(ids[k], scores[k], sizes[k], count);
+                size = addFoldedItems(items, i, null, this.userFactors.row(i), ids[k], scores[k], size, count, null);
+            } else {
+                continue;
+            }
+            TopK.sort(ids[k], scores[k], size);
+            sizes[k] = size;
+        }
+    }
+
+    // added rows are shared, so callers must not change them
+    private static float[] factors(Matrix factors, FoldedRows<?> rows, int i) {
+        return i < rows.offset() ? factors.row(i) : rows.row(i).factors;
+    }
+
+    int userCount() {
+        return this.userRows.rows();
+    }
+
+    int itemCount() {
+        return this.itemRows.rows();
+    }
+
+    T userId(int i) {
+        return this.userRows.lookup(i);
+    }
+
+    U itemId(int i) {
+        return this.itemRows.lookup(i);
+    }
+
+    void batchUserRecs(int[] users, int count, int[][] ids, float[][] scores, int[] sizes) {
+        read(() -> {
+            batchUserRecs(this.userRows, this.itemRows, users, count, ids, scores, sizes, 1);
+            return null;
+        });
+    }
+
+    int similarItems(int i, int[] ids, float[] scores, int count) {
+        return read(() -> similarItems(this.itemRows, i, ids, scores, count, null));
+    }
+
+    // runs a read without a lock, and again under the read lock if a change was published while it ran
+    // a read that overlaps a change can only compute wrong scores, which are thrown away
+    private <R> R read(Supplier<R> body) {
+        long stamp = startRead();
+        try {
+            R result;
+            do {
+                result = body.get();
+            } while ((stamp = retryRead(stamp)) != 0L);
+            return result;
+        } finally {
+            endRead(stamp);
+        }
+    }
+
+    private long startRead() {
+        long stamp = this.publishLock.tryOptimisticRead();
+        return stamp != 0L ? stamp : this.publishLock.readLock();
+    }
+
+    // returns 0 if the read is done, or a read lock stamp to run it again
+    private long retryRead(long stamp) {
+        if (StampedLock.isReadLockStamp(stamp)) {
+            this.publishLock.unlockRead(stamp);
+            return 0L;
+        }
+        return this.publishLock.validate(stamp) ? 0L : this.publishLock.readLock();
+    }
+
+    // releases the read lock if a read failed while holding it
+    private void endRead(long stamp) {
+        if (StampedLock.isReadLockStamp(stamp)) {
+            this.publishLock.unlockRead(stamp);
+        }
+    }
+
+    private static <V> List<Rec<V>> recs(FoldedRows<V> rows, int[] ids, float[] scores, int size) {
+        List<Rec<V>> recs = new ArrayList<>(size);
+        for (int j = 0; j < size; j++) {
+            recs.add(new Rec<V>(rows.lookup(ids[j]), scores[j]));
+        }
+        return recs;
+    }
+
+    private static void checkBuffers(int[] ids, float[] scores) {
+        if (scores.length < ids.length) {
+            throw new IllegalArgumentException("scores must be at least as long as indices");
+        }
+    }
+
+    private static Matrix norms(Matrix factors, boolean offHeap) {
+        Matrix norms = createMatrix(factors.rows(), 1, offHeap);
+        float[] row = new float[factors.cols()];
+        for (int i = 0; i < factors.rows(); i++) {
+            factors.getRow(i, row);
+            norms.set(i, 0, (float) Math.sqrt(dot(row, 0, row, 0, row.length)));
+        }
+        return norms;
+    }
+
+    static float dot(float[] a, int aOffset, float[] b, int bOffset, int n) {
+        return Kernels.dot(a, aOffset, b, bOffset, n);
+    }
+
+    static void scaledAdd(float[] x, int xOffset, float a, float[] v, int vOffset, int n) {
+        Kernels.scaledAdd(x, xOffset, a, v, vOffset, n);
+    }
+
+    private static void shuffle(int[] v, int start, int end, Random prng) {
+        for (int i = end - 1; i > start; i--) {
+            int j = start + prng.nextInt(i - start + 1);
+            int t = v[i];
+            v[i] = v[j];
+            v[j] = t;
         }
-        Collections.shuffle(v, prng);
-        return v;
     }
 }
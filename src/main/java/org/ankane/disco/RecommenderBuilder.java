@@ -1,6 +1,7 @@
 package org.ankane.disco;
 
 import java.util.Optional;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 
 /**
@@ -14,6 +15,22 @@ public class RecommenderBuilder {
     float alpha;
     Optional<Consumer<FitInfo>> callback;
     Optional<Long> seed;
+    int threads;
+    Optional<Executor> executor;
+    Optional<Integer> blocks;
+    boolean offHeap;
+    boolean similarIndex;
+    int indexM;
+    int indexEfConstruction;
+    int indexEfSearch;
+    boolean userRecsIndex;
+    int indexCandidates;
+    boolean pruneScans;
+    int itemNeighbors;
+    Optional<Recommender<?, ?>> warmStart;
+    boolean keepLearningRates;
+    Optional<Solver> solver;
+    int cgSteps;
 
     /**
      * Starts a new recommender.
@@ -26,6 +43,22 @@ public class RecommenderBuilder {
         this.alpha = 40.0f;
         this.callback = Optional.empty();
         this.seed = Optional.empty();
+        this.threads = 1;
+        this.executor = Optional.empty();
+        this.blocks = Optional.empty();
+        this.offHeap = false;
+        this.similarIndex = false;
+        this.indexM = 16;
+        this.indexEfConstruction = 200;
+        this.indexEfSearch = 50;
+        this.userRecsIndex = false;
+        this.indexCandidates = 100;
+        this.pruneScans = false;
+        this.itemNeighbors = 0;
+        this.warmStart = Optional.empty();
+        this.keepLearningRates = false;
+        this.solver = Optional.empty();
+        this.cgSteps = 3;
     }
 
     /**
@@ -68,6 +101,24 @@ public class RecommenderBuilder {
         return this;
     }
 
+    /**
+     * Sets the solver.
+     *
+     * <p>Exact solves take more time per iteration than the default solvers, especially with many factors, but usually need fewer iterations.
+     */
+    public RecommenderBuilder solver(Solver value) {
+        this.solver = Optional.of(value);
+        return this;
+    }
+
+    /**
+     * Sets the number of conjugate gradient steps for each row in each iteration.
+     */
+    public RecommenderBuilder cgSteps(int value) {
+        this.cgSteps = value;
+        return this;
+    }
+
     /**
      * Sets the callback for each iteration.
      */
@@ -84,6 +135,139 @@ public class RecommenderBuilder {
         return this;
     }
 
+    /**
+     * Sets the number of threads.
+     */
+    public RecommenderBuilder threads(int value) {
+        if (value < 1) {
+            throw new IllegalArgumentException("Threads must be at least 1");
+        }
+        this.threads = value;
+        return this;
+    }
+
+    /**
+     * Sets an executor to run threads on instead of starting new ones for each step.
+     *
+     * <p>The number of threads is still set with {@link #threads(int)}. Work the executor hasn't started by the time the calling thread is free runs on the calling thread, so a busy executor slows training down but can't block it.
+     */
+    public RecommenderBuilder executor(Executor value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Executor must not be null");
+        }
+        this.executor = Optional.of(value);
+        return this;
+    }
+
+    /**
+     * Sets the number of blocks on each side of the grid that ratings are split into for explicit feedback.
+     *
+     * <p>Defaults to the number of threads. Results depend on the number of blocks but not the number of threads, so set both to get the same factors on machines with different numbers of threads.
+     */
+    public RecommenderBuilder blocks(int value) {
+        if (value < 1) {
+            throw new IllegalArgumentException("Blocks must be at least 1");
+        }
+        this.blocks = Optional.of(value);
+        return this;
+    }
+
+    /**
+     * Sets whether to store factors outside the heap.
+     */
+    public RecommenderBuilder offHeap(boolean value) {
+        this.offHeap = value;
+        return this;
+    }
+
+    /**
+     * Sets whether to build HNSW indexes for itemRecs and similarUsers.
+     */
+    public RecommenderBuilder similarIndex(boolean value) {
+        this.similarIndex = value;
+        return this;
+    }
+
+    /**
+     * Sets the number of links per node in indexes.
+     */
+    public RecommenderBuilder indexM(int value) {
+        this.indexM = value;
+        return this;
+    }
+
+    /**
+     * Sets the size of the candidate list when building indexes.
+     */
+    public RecommenderBuilder indexEfConstruction(int value) {
+        this.indexEfConstruction = value;
+        return this;
+    }
+
+    /**
+     * Sets the size of the candidate list when searching indexes. Higher values improve recall and increase latency.
+     */
+    public RecommenderBuilder indexEfSearch(int value) {
+        this.indexEfSearch = value;
+        return this;
+    }
+
+    /**
+     * Sets whether to build an HNSW index for userRecs.
+     */
+    public RecommenderBuilder userRecsIndex(boolean value) {
+        this.userRecsIndex = value;
+        return this;
+    }
+
+    /**
+     * Sets the number of candidates that userRecs takes from its index. Higher values improve recall and increase latency.
+     */
+    public RecommenderBuilder indexCandidates(int value) {
+        this.indexCandidates = value;
+        return this;
+    }
+
+    /**
+     * Sets whether to skip rows that cannot be in the results of userRecs, itemRecs, and similarUsers without an index.
+     *
+     * <p>Results are the same as a full scan.
+     */
+    public RecommenderBuilder pruneScans(boolean value) {
+        this.pruneScans = value;
+        return this;
+    }
+
+    /**
+     * Sets the number of neighbors to precompute for each item.
+     *
+     * <p>itemRecs is a lookup when the count is at most this number.
+     */
+    public RecommenderBuilder itemNeighbors(int value) {
+        this.itemNeighbors = value;
+        return this;
+    }
+
+    /**
+     * Sets a recommender to start from instead of random factors.
+     *
+     * <p>Users and items it knows, including ones that were folded in, start from its factors, so a few iterations are enough to retrain with new data. It must have the same number of factors.
+     */
+    public RecommenderBuilder warmStart(Recommender<?, ?> value) {
+        this.warmStart = Optional.of(value);
+        return this;
+    }
+
+    /**
+     * Sets whether to keep learning rates for explicit feedback in the recommender.
+     *
+     * <p>Warm starts from a recommender with learning rates continue from them instead of starting over.
+     */
+    public RecommenderBuilder keepLearningRates(boolean value) {
+        this.keepLearningRates = value;
+        return this;
+    }
+
     /**
      * Creates a recommender with explicit feedback.
      */
@@ -0,0 +1,53 @@
+package org.ankane.disco;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the recommender used for serving so a retrained or loaded one can be swapped in.
+ *
+ * <p>Swaps are atomic and safely publish the new recommender. Calls on a recommender
+ * returned by {@link #get()} finish on that recommender even if another is swapped in,
+ * and its memory is released once nothing refers to it. Get the recommender once per
+ * request so all calls for the request use the same one.
+ *
+ * <p>The holder doesn't copy the recommender, so fold-in and updates on it are seen
+ * by later reads as described in {@link Recommender}.
+ */
+public class RecommenderHolder<T, U> {
+    private AtomicReference<Recommender<T, U>> recommender;
+
+    /**
+     * Creates a holder with a recommender.
+     */
+    public RecommenderHolder(Recommender<T, U> recommender) {
+        this.recommender = new AtomicReference<>(checkRecommender(recommender));
+    }
+
+    /**
+     * Returns the current recommender.
+     */
+    public Recommender<T, U> get() {
+        return this.recommender.get();
+    }
+
+    /**
+     * Replaces the current recommender and returns the previous one.
+     */
+    public Recommender<T, U> swap(Recommender<T, U> recommender) {
+        return this.recommender.getAndSet(checkRecommender(recommender));
+    }
+
+    /**
+     * Replaces the current recommender if it's still the expected one, like when retraining may race with another swap.
+     */
+    public boolean swap(Recommender<T, U> expected, Recommender<T, U> recommender) {
+        return this.recommender.compareAndSet(expected, checkRecommender(recommender));
+    }
+
+    private static <T, U> Recommender<T, U> checkRecommender(Recommender<T, U> recommender) {
+        if (recommender == null) {
+            throw new IllegalArgumentException("Recommender must not be null");
+        }
+        return recommender;
+    }
+}
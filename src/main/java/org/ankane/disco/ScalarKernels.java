@@ -0,0 +1,55 @@
+package org.ankane.disco;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Kernels with plain loops, which work on any Java version.
+ */
+class ScalarKernels {
+    private ScalarKernels() {}
+
+    static float dot(float[] a, int aOffset, float[] b, int bOffset, int n) {
+        float sum = 0.0f;
+        for (int i = 0; i < n; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    static float dot(FloatBuffer a, int aOffset, float[] b, int bOffset, int n) {
+        float sum = 0.0f;
+        for (int i = 0; i < n; i++) {
+            sum += a.get(aOffset + i) * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    // four sums that don't wait on each other, each in the same order as dot
+    static void dot4(float[] x, int xOffset, float[] a, int aOffset, int stride, int n, float[] out) {
+        int o0 = aOffset;
+        int o1 = o0 + stride;
+        int o2 = o1 + stride;
+        int o3 = o2 + stride;
+        float s0 = 0.0f;
+        float s1 = 0.0f;
+        float s2 = 0.0f;
+        float s3 = 0.0f;
+        for (int i = 0; i < n; i++) {
+            float v = x[xOffset + i];
+            s0 += a[o0 + i] * v;
+            s1 += a[o1 + i] * v;
+            s2 += a[o2 + i] * v;
+            s3 += a[o3 + i] * v;
+        }
+        out[0] = s0;
+        out[1] = s1;
+        out[2] = s2;
+        out[3] = s3;
+    }
+
+    static void scaledAdd(float[] x, int xOffset, float a, float[] v, int vOffset, int n) {
+        for (int i = 0; i < n; i++) {
+            x[xOffset + i] += a * v[vOffset + i];
+        }
+    }
+}
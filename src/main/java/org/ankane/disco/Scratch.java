@@ -0,0 +1,41 @@
+package org.ankane.disco;
+
+/**
+ * Buffers for one scan at a time on each thread, so calls with caller-supplied buffers don't allocate.
+ *
+ * <p>A scan that starts while another runs on the same thread, like from a filter, gets new buffers.
+ */
+class Scratch {
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    // dot products of a block of four rows
+    final float[] block = new float[4];
+    private float[] row = new float[0];
+    private boolean busy;
+
+    /**
+     * Returns the buffers for this thread, or new ones if they're in use.
+     */
+    static Scratch acquire() {
+        Scratch scratch = SCRATCH.get();
+        if (scratch.busy) {
+            scratch = new Scratch();
+        }
+        scratch.busy = true;
+        return scratch;
+    }
+
+    void release() {
+        this.busy = false;
+    }
+
+    /**
+     * Returns a buffer with exactly cols elements for a query row.
+     */
+    float[] row(int cols) {
+        if (this.row.length != cols) {
+            this.row = new float[cols];
+        }
+        return this.row;
+    }
+}
@@ -0,0 +1,21 @@
+package org.ankane.disco;
+
+/**
+ * A method for solving for factors.
+ */
+public enum Solver {
+    /**
+     * The stochastic gradient method with twin learners, for explicit feedback. This is the default for explicit feedback.
+     */
+    SGD,
+
+    /**
+     * The conjugate gradient method, for implicit feedback. This is the default for implicit feedback.
+     */
+    CG,
+
+    /**
+     * Alternating least squares with an exact solve for each row, for explicit or implicit feedback.
+     */
+    CHOLESKY
+}
@@ -1,11 +0,0 @@
-package org.ankane.disco;
-
-class SparseRow {
-    int index;
-    float confidence;
-
-    SparseRow(int index, float confidence) {
-        this.index = index;
-        this.confidence = confidence;
-    }
-}
@@ -0,0 +1,119 @@
+package org.ankane.disco;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A compact id index for Latin-1 string ids.
+ *
+ * <p>Characters of all ids are stored back to back in a single byte array,
+ * so there is no String object per id.
+ */
+class StringIdIndex extends IdIndex {
+    private static final int MAX_BYTES = Integer.MAX_VALUE - 8;
+
+    private byte[] bytes;
+    private int length;
+    // id i is stored in [starts[i], starts[i + 1])
+    private int[] starts;
+    private int[] hashes;
+
+    StringIdIndex() {
+        this.bytes = new byte[256];
+        this.length = 0;
+        this.starts = new int[17];
+        this.hashes = new int[16];
+    }
+
+    static boolean isLatin1(String id) {
+        for (int i = 0; i < id.length(); i++) {
+            if (id.charAt(i) > 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean accepts(Object id) {
+        return id instanceof String && isLatin1((String) id) && ((String) id).length() <= MAX_BYTES - this.length;
+    }
+
+    int add(Object id) {
+        String key = (String) id;
+        int hash = mix(key.hashCode());
+        int i = find(key, hash);
+        if (i >= 0) {
+            return i;
+        }
+
+        if (this.size == this.hashes.length) {
+            this.hashes = Arrays.copyOf(this.hashes, grow(this.hashes.length));
+            this.starts = Arrays.copyOf(this.starts, this.hashes.length + 1);
+        }
+        if (key.length() > this.bytes.length - this.length) {
+            long capacity = Math.max(this.length + (long) key.length(), this.bytes.length + (this.bytes.length >> 1));
+            this.bytes = Arrays.copyOf(this.bytes, (int) Math.min(capacity, MAX_BYTES));
+        }
+        for (int j = 0; j < key.length(); j++) {
+            this.bytes[this.length + j] = (byte) key.charAt(j);
+        }
+        this.length += key.length();
+        this.hashes[this.size] = hash;
+        this.starts[this.size + 1] = this.length;
+        return insert(hash);
+    }
+
+    int get(Object id) {
+        if (!(id instanceof String)) {
+            return -1;
+        }
+        String key = (String) id;
+        return find(key, mix(key.hashCode()));
+    }
+
+    Object lookup(int index) {
+        int start = this.starts[index];
+        return new String(this.bytes, start, this.starts[index + 1] - start, StandardCharsets.ISO_8859_1);
+    }
+
+    IdIndex copy() {
+        StringIdIndex copy = new StringIdIndex();
+        copyTo(copy);
+        copy.bytes = Arrays.copyOf(this.bytes, this.length);
+        copy.length = this.length;
+        copy.starts = Arrays.copyOf(this.starts, this.size + 1);
+        copy.hashes = Arrays.copyOf(this.hashes, this.size);
+        return copy;
+    }
+
+    int hashAt(int index) {
+        return this.hashes[index];
+    }
+
+    private int find(String key, int hash) {
+        int[] slots = this.slots;
+        int mask = slots.length - 1;
+        int s = hash & mask;
+        int v;
+        while ((v = slots[s]) != 0) {
+            if (this.hashes[v - 1] == hash && matches(v - 1, key)) {
+                return v - 1;
+            }
+            s = (s + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean matches(int index, String key) {
+        int start = this.starts[index];
+        if (this.starts[index + 1] - start != key.length()) {
+            return false;
+        }
+        for (int j = 0; j < key.length(); j++) {
+            if ((this.bytes[start + j] & 0xFF) != key.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
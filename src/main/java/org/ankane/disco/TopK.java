@@ -0,0 +1,93 @@
+package org.ankane.disco;
+
+/**
+ * Top-k selection with a bounded min-heap over primitive arrays.
+ *
+ * <p>The worst entry is kept at the root, so each candidate is compared
+ * against it once and most candidates are rejected without touching the heap.
+ * Ties are broken by the lower index, which matches a stable descending sort.
+ */
+class TopK {
+    private TopK() {}
+
+    /**
+     * Offers a candidate to the heap and returns the new heap size.
+     */
+    static int push(int[] ids, float[] scores, int size, int capacity, int id, float score) {
+        if (size < capacity) {
+            ids[size] = id;
+            scores[size] = score;
+            siftUp(ids, scores, size);
+            return size + 1;
+        }
+
+        if (capacity > 0 && better(score, id, scores[0], ids[0])) {
+            ids[0] = id;
+            scores[0] = score;
+            siftDown(ids, scores, 0, size);
+        }
+        return size;
+    }
+
+    /**
+     * Returns whether {@link #push} would add a candidate, so costly checks can wait until it would.
+     */
+    static boolean accepts(int[] ids, float[] scores, int size, int capacity, int id, float score) {
+        return size < capacity || (capacity > 0 && better(score, id, scores[0], ids[0]));
+    }
+
+    /**
+     * Sorts the heap in place from best to worst.
+     */
+    static void sort(int[] ids, float[] scores, int size) {
+        for (int end = size - 1; end > 0; end--) {
+            swap(ids, scores, 0, end);
+            siftDown(ids, scores, 0, end);
+        }
+    }
+
+    // higher score first, NaN last, then lower index
+    private static boolean better(float s1, int i1, float s2, int i2) {
+        int c = Float.compare(-s1, -s2);
+        return c < 0 || (c == 0 && i1 < i2);
+    }
+
+    private static void siftUp(int[] ids, float[] scores, int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!better(scores[parent], ids[parent], scores[i], ids[i])) {
+                break;
+            }
+            swap(ids, scores, i, parent);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(int[] ids, float[] scores, int i, int size) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= size) {
+                break;
+            }
+            int worst = left;
+            int right = left + 1;
+            if (right < size && better(scores[left], ids[left], scores[right], ids[right])) {
+                worst = right;
+            }
+            if (!better(scores[i], ids[i], scores[worst], ids[worst])) {
+                break;
+            }
+            swap(ids, scores, i, worst);
+            i = worst;
+        }
+    }
+
+    private static void swap(int[] ids, float[] scores, int i, int j) {
+        int id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+        float score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+    }
+}
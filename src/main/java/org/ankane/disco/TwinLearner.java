@@ -0,0 +1,158 @@
+package org.ankane.disco;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The stochastic gradient method with twin learners.
+ *
+ * <p>https://www.csie.ntu.edu.tw/~cjlin/papers/libmf/mf_adaptive_pakdd.pdf
+ * algorithm 2
+ */
+class TwinLearner {
+    private float learningRate;
+    private float lambda;
+    private int k;
+    private int ks;
+
+    float[] gSlow;
+    float[] gFast;
+    float[] hSlow;
+    float[] hFast;
+
+    TwinLearner(int users, int items, int factors, float learningRate, float lambda) {
+        this.learningRate = learningRate;
+        this.lambda = lambda;
+        this.k = factors;
+        this.ks = Math.max((int) Math.round(factors * 0.08), 1);
+
+        this.gSlow = new float[users];
+        this.gFast = new float[users];
+        Arrays.fill(this.gSlow, 1.0f);
+        Arrays.fill(this.gFast, 1.0f);
+
+        this.hSlow = new float[items];
+        this.hFast = new float[items];
+        Arrays.fill(this.hSlow, 1.0f);
+        Arrays.fill(this.hFast, 1.0f);
+    }
+
+    private TwinLearner(float learningRate, float lambda, int factors, float[] gSlow, float[] gFast, float[] hSlow, float[] hFast) {
+        this.learningRate = learningRate;
+        this.lambda = lambda;
+        this.k = factors;
+        this.ks = Math.max((int) Math.round(factors * 0.08), 1);
+        this.gSlow = gSlow;
+        this.gFast = gFast;
+        this.hSlow = hSlow;
+        this.hFast = hFast;
+    }
+
+    /**
+     * Continues the accumulated gradients of rows from a previous learner.
+     *
+     * <p>Sources give the previous index of each user and item, or -1 for new rows.
+     */
+    void copyFrom(TwinLearner previous, int[] userSources, int[] itemSources) {
+        for (int u = 0; u < userSources.length; u++) {
+            int source = userSources[u];
+            if (source >= 0 && source < previous.gSlow.length) {
+                this.gSlow[u] = previous.gSlow[source];
+                this.gFast[u] = previous.gFast[source];
+            }
+        }
+        for (int v = 0; v < itemSources.length; v++) {
+            int source = itemSources[v];
+            if (source >= 0 && source < previous.hSlow.length) {
+                this.hSlow[v] = previous.hSlow[source];
+                this.hFast[v] = previous.hFast[source];
+            }
+        }
+    }
+
+    /**
+     * Updates the factors for a rating and returns the error before the update.
+     */
+    float update(float[] p, int pOffset, float[] q, int qOffset, int u, int v, float r, boolean fast) {
+        float e = r - Recommender.dot(p, pOffset, q, qOffset, k);
+
+        // slow learner
+        float gHat = 0.0f;
+        float hHat = 0.0f;
+
+        float nu = learningRate / (float) Math.sqrt(gSlow[u]);
+        float nv = learningRate / (float) Math.sqrt(hSlow[v]);
+
+        for (int d = 0; d < ks; d++) {
+            float pd = p[pOffset + d];
+            float qd = q[qOffset + d];
+            float gud = -e * qd + lambda * pd;
+            float hvd = -e * pd + lambda * qd;
+
+            gHat += gud * gud;
+            hHat += hvd * hvd;
+
+            p[pOffset + d] = pd - nu * gud;
+            q[qOffset + d] = qd - nv * hvd;
+        }
+
+        gSlow[u] += gHat / (float) ks;
+        hSlow[v] += hHat / (float) ks;
+
+        // fast learner
+        if (fast) {
+            gHat = 0.0f;
+            hHat = 0.0f;
+
+            nu = learningRate / (float) Math.sqrt(gFast[u]);
+            nv = learningRate / (float) Math.sqrt(hFast[v]);
+
+            for (int d = ks; d < k; d++) {
+                float pd = p[pOffset + d];
+                float qd = q[qOffset + d];
+                float gud = -e * qd + lambda * pd;
+                float hvd = -e * pd + lambda * qd;
+
+                gHat += gud * gud;
+                hHat += hvd * hvd;
+
+                p[pOffset + d] = pd - nu * gud;
+                q[qOffset + d] = qd - nv * hvd;
+            }
+
+            gFast[u] += gHat / (float) (k - ks);
+            hFast[v] += hHat / (float) (k - ks);
+        }
+
+        return e;
+    }
+
+    void write(ModelFile.Writer out) throws IOException {
+        out.putFloat(this.learningRate);
+        out.putFloat(this.lambda);
+        out.putInt(this.k);
+        out.putInt(this.gSlow.length);
+        out.putFloats(this.gSlow, 0, this.gSlow.length);
+        out.putFloats(this.gFast, 0, this.gFast.length);
+        out.putInt(this.hSlow.length);
+        out.putFloats(this.hSlow, 0, this.hSlow.length);
+        out.putFloats(this.hFast, 0, this.hFast.length);
+    }
+
+    static TwinLearner read(ModelFile.Reader in) throws IOException {
+        float learningRate = in.getFloat();
+        float lambda = in.getFloat();
+        int factors = in.getInt();
+        int users = in.getInt();
+        float[] gSlow = new float[users];
+        float[] gFast = new float[users];
+        in.getFloats(gSlow, 0, users);
+        in.getFloats(gFast, 0, users);
+        int items = in.getInt();
+        float[] hSlow = new float[items];
+        float[] hFast = new float[items];
+        in.getFloats(hSlow, 0, items);
+        in.getFloats(hFast, 0, items);
+        return new TwinLearner(learningRate, lambda, factors, gSlow, gFast, hSlow, hFast);
+    }
+}
@@ -0,0 +1,123 @@
+package org.ankane.disco;
+
+import java.nio.FloatBuffer;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels with the Vector API.
+ *
+ * <p>A dot product keeps one sum per lane and adds the lanes in order at the
+ * end, instead of using a reduction whose order can depend on how it's
+ * compiled. Scaled adds round the same way as plain loops.
+ */
+class VectorKernels {
+    // wider vectors leave more of a typical row to the scalar tail and more lanes to add
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED.vectorBitSize() > 256 ? FloatVector.SPECIES_256 : FloatVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+    // shorter rows are faster with plain loops, and all kernels choose by length the same way
+    private static final int MIN_LENGTH = 4 * LANES;
+
+    private VectorKernels() {}
+
+    static float dot(float[] a, int aOffset, float[] b, int bOffset, int n) {
+        if (n < MIN_LENGTH) {
+            return ScalarKernels.dot(a, aOffset, b, bOffset, n);
+        }
+
+        int bound = SPECIES.loopBound(n);
+        FloatVector acc = FloatVector.zero(SPECIES);
+        for (int i = 0; i < bound; i += LANES) {
+            FloatVector va = FloatVector.fromArray(SPECIES, a, aOffset + i);
+            acc = acc.add(va.mul(FloatVector.fromArray(SPECIES, b, bOffset + i)));
+        }
+        float sum = sumLanes(acc);
+        for (int i = bound; i < n; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    static float dot(FloatBuffer a, int aOffset, float[] b, int bOffset, int n) {
+        if (n < MIN_LENGTH) {
+            return ScalarKernels.dot(a, aOffset, b, bOffset, n);
+        }
+        if (a.hasArray()) {
+            return dot(a.array(), a.arrayOffset() + aOffset, b, bOffset, n);
+        }
+
+        // direct and mapped buffers can't be loaded as vectors without a preview API
+        // so sum one lane at a time in the same order as the vectors
+        int bound = SPECIES.loopBound(n);
+        float sum = 0.0f;
+        for (int l = 0; l < LANES; l++) {
+            float lane = 0.0f;
+            for (int i = l; i < bound; i += LANES) {
+                lane += a.get(aOffset + i) * b[bOffset + i];
+            }
+            sum += lane;
+        }
+        for (int i = bound; i < n; i++) {
+            sum += a.get(aOffset + i) * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    static void dot4(float[] x, int xOffset, float[] a, int aOffset, int stride, int n, float[] out) {
+        if (n < MIN_LENGTH) {
+            ScalarKernels.dot4(x, xOffset, a, aOffset, stride, n, out);
+            return;
+        }
+
+        int o0 = aOffset;
+        int o1 = o0 + stride;
+        int o2 = o1 + stride;
+        int o3 = o2 + stride;
+        int bound = SPECIES.loopBound(n);
+        FloatVector acc0 = FloatVector.zero(SPECIES);
+        FloatVector acc1 = FloatVector.zero(SPECIES);
+        FloatVector acc2 = FloatVector.zero(SPECIES);
+        FloatVector acc3 = FloatVector.zero(SPECIES);
+        for (int i = 0; i < bound; i += LANES) {
+            FloatVector v = FloatVector.fromArray(SPECIES, x, xOffset + i);
+            acc0 = acc0.add(FloatVector.fromArray(SPECIES, a, o0 + i).mul(v));
+            acc1 = acc1.add(FloatVector.fromArray(SPECIES, a, o1 + i).mul(v));
+            acc2 = acc2.add(FloatVector.fromArray(SPECIES, a, o2 + i).mul(v));
+            acc3 = acc3.add(FloatVector.fromArray(SPECIES, a, o3 + i).mul(v));
+        }
+        float s0 = sumLanes(acc0);
+        float s1 = sumLanes(acc1);
+        float s2 = sumLanes(acc2);
+        float s3 = sumLanes(acc3);
+        for (int i = bound; i < n; i++) {
+            float v = x[xOffset + i];
+            s0 += a[o0 + i] * v;
+            s1 += a[o1 + i] * v;
+            s2 += a[o2 + i] * v;
+            s3 += a[o3 + i] * v;
+        }
+        out[0] = s0;
+        out[1] = s1;
+        out[2] = s2;
+        out[3] = s3;
+    }
+
+    static void scaledAdd(float[] x, int xOffset, float a, float[] v, int vOffset, int n) {
+        int bound = SPECIES.loopBound(n);
+        for (int i = 0; i < bound; i += LANES) {
+            FloatVector vx = FloatVector.fromArray(SPECIES, x, xOffset + i);
+            vx.add(FloatVector.fromArray(SPECIES, v, vOffset + i).mul(a)).intoArray(x, xOffset + i);
+        }
+        for (int i = bound; i < n; i++) {
+            x[xOffset + i] += a * v[vOffset + i];
+        }
+    }
+
+    private static float sumLanes(FloatVector v) {
+        float sum = 0.0f;
+        for (int l = 0; l < LANES; l++) {
+            sum += v.lane(l);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,74 @@
+package org.ankane.disco;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// the java21 profile also runs this with the Vector API, where Kernels uses VectorKernels
+class KernelsTest {
+    // lengths below, at, and past the vector width and its unrolled blocks
+    private static final int[] LENGTHS = {1, 7, 8, 31, 32, 33, 64, 70, 100};
+
+    @Test
+    void testVectorized() {
+        assertEquals(Boolean.getBoolean("disco.vectorized"), Kernels.vectorized());
+    }
+
+    @Test
+    void testDot() {
+        Random prng = new Random(42);
+        for (int n : LENGTHS) {
+            float[] a = random(prng, n + 3);
+            float[] b = random(prng, n + 5);
+            float expected = ScalarKernels.dot(a, 3, b, 5, n);
+            float actual = Kernels.dot(a, 3, b, 5, n);
+            assertEquals(expected, actual, 1e-5f * n, "n = " + n);
+
+            // buffers are summed in the same order as arrays
+            FloatBuffer buffer = ByteBuffer.allocateDirect((n + 3) * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+            buffer.put(a);
+            assertEquals(actual, Kernels.dot(buffer, 3, b, 5, n), "n = " + n);
+        }
+    }
+
+    @Test
+    void testDot4() {
+        Random prng = new Random(42);
+        for (int n : LENGTHS) {
+            int stride = n + 2;
+            float[] a = random(prng, 1 + 4 * stride);
+            float[] x = random(prng, n + 1);
+            float[] out = new float[4];
+            Kernels.dot4(x, 1, a, 1, stride, n, out);
+            for (int k = 0; k < 4; k++) {
+                assertEquals(Kernels.dot(a, 1 + k * stride, x, 1, n), out[k], "n = " + n);
+            }
+        }
+    }
+
+    @Test
+    void testScaledAdd() {
+        Random prng = new Random(42);
+        for (int n : LENGTHS) {
+            float[] x = random(prng, n + 1);
+            float[] v = random(prng, n + 2);
+            float[] expected = x.clone();
+            ScalarKernels.scaledAdd(expected, 1, 0.5f, v, 2, n);
+            Kernels.scaledAdd(x, 1, 0.5f, v, 2, n);
+            assertArrayEquals(expected, x, "n = " + n);
+        }
+    }
+
+    private static float[] random(Random prng, int n) {
+        float[] v = new float[n];
+        for (int i = 0; i < n; i++) {
+            v[i] = prng.nextFloat() * 2.0f - 1.0f;
+        }
+        return v;
+    }
+}
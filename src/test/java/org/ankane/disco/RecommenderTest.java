@@ -1,16 +1,39 @@
 package org.ankane.disco;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 public class RecommenderTest {
     @Test
@@ -77,6 +100,57 @@ public class RecommenderTest {
         assertEquals(itemIds, Arrays.asList("A", "B"));
     }
 
+    @Test
+    void testRatedManyItems() {
+        Dataset<Integer, Integer> data = new Dataset<>();
+        for (int i = 0; i < 100; i++) {
+            data.add(1, i, 1.0f);
+        }
+        data.add(2, 5, 1.0f);
+        data.add(2, 3, 1.0f);
+        data.add(2, 5, 1.0f);
+        data.add(3, 4, 1.0f);
+        data.add(3, 50, 1.0f);
+
+        Recommender<Integer, Integer> recommender = Recommender.fitImplicit(data);
+
+        List<Integer> itemIds = getIds(recommender.userRecs(2, 1000));
+        assertEquals(98, itemIds.size());
+        assertFalse(itemIds.contains(3));
+        assertFalse(itemIds.contains(5));
+
+        itemIds = getIds(recommender.userRecs(3, 1000));
+        assertEquals(98, itemIds.size());
+        assertFalse(itemIds.contains(4));
+        assertFalse(itemIds.contains(50));
+
+        assertEquals(0, recommender.userRecs(1, 1000).size());
+    }
+
+    @Test
+    void testRatedRuns() {
+        // each user rates about 30 items, which is few enough to store as a sorted run
+        Dataset<Integer, Integer> data = ratings(199, 1499, 6000);
+        List<Set<Integer>> rated = new ArrayList<>();
+        for (int u = 0; u < 199; u++) {
+            rated.add(new HashSet<>());
+        }
+        for (int i = 0; i < 6000; i++) {
+            rated.get(i % 199).add(i % 1499);
+        }
+
+        Recommender<Integer, Integer> recommender = Recommender.builder().seed(42).fitImplicit(data);
+        for (int u = 0; u < 199; u++) {
+            List<Integer> unrated = new ArrayList<>();
+            for (int v = 0; v < 1499; v++) {
+                if (!rated.get(u).contains(v)) {
+                    unrated.add(v);
+                }
+            }
+            assertEquals(getIds(recommender.rank(u, unrated, 1499)), getIds(recommender.userRecs(u, 1499)));
+        }
+    }
+
     @Test
     void testItemRecsSameScore() {
         Dataset<Integer, String> data = new Dataset<>();
@@ -89,6 +163,90 @@ public class RecommenderTest {
         assertEquals(itemIds, Arrays.asList("B", "C"));
     }
 
+    @Test
+    void testBuffers() {
+        Dataset<Integer, String> data = new Dataset<>();
+        data.add(1, "A", 1.0f);
+        data.add(1, "B", 1.0f);
+        data.add(2, "C", 1.0f);
+        data.add(3, "A", 1.0f);
+        data.add(3, "D", 1.0f);
+
+        Recommender<Integer, String> recommender = Recommender.fitImplicit(data);
+
+        int[] indices = new int[2];
+        float[] scores = new float[2];
+        int size = recommender.userRecs(1, indices, scores);
+        List<Rec<String>> recs = recommender.userRecs(1, 2);
+        assertEquals(recs.size(), size);
+        for (int i = 0; i < size; i++) {
+            assertEquals(recs.get(i).id, recommender.itemIds().get(indices[i]));
+            assertEquals(recs.get(i).score, scores[i]);
+        }
+
+        size = recommender.itemRecs("A", indices, scores);
+        recs = recommender.itemRecs("A", 2);
+        assertEquals(2, size);
+        for (int i = 0; i < size; i++) {
+            assertEquals(recs.get(i).id, recommender.itemIds().get(indices[i]));
+            assertEquals(recs.get(i).score, scores[i]);
+        }
+
+        assertEquals(0, recommender.similarUsers(4, indices, scores));
+    }
+
+    @Test
+    void testBuffersDontAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        int[] indices = new int[5];
+        float[] scores = new float[5];
+        long thread = Thread.currentThread().getId();
+
+        // users rate more than 1/32 of the items in the first dataset, so their rated items are bitsets,
+        // and fewer in the second, so they're sorted runs
+        List<Recommender<Integer, Integer>> recommenders = new ArrayList<>();
+        for (Dataset<Integer, Integer> data : Arrays.asList(ratings(97, 89, 1000), ratings(199, 1499, 6000))) {
+            recommenders.add(Recommender.builder().seed(42).fitExplicit(data));
+            recommenders.add(Recommender.builder().seed(42).pruneScans(true).fitExplicit(data));
+
+            // items added after fitting are tested separately without merging them into a new array
+            Dataset<Integer, Integer> ratings = new Dataset<>();
+            ratings.add(3, 7, 5.0f);
+            for (boolean prune : new boolean[] {false, true}) {
+                Recommender<Integer, Integer> updated = Recommender.builder().seed(42).keepLearningRates(true).pruneScans(prune).fitExplicit(data);
+                updated.update(ratings);
+                recommenders.add(updated);
+            }
+        }
+
+        for (Recommender<Integer, Integer> recommender : recommenders) {
+            // the first calls set up buffers for the thread
+            for (int n = 0; n < 100; n++) {
+                recommender.userRecs(3, indices, scores);
+                recommender.itemRecs(4, indices, scores);
+                recommender.similarUsers(5, indices, scores);
+            }
+
+            // the JIT compiler can allocate once in a while, so take the best of a few rounds
+            long allocated = Long.MAX_VALUE;
+            for (int round = 0; round < 5; round++) {
+                long start = threads.getThreadAllocatedBytes(thread);
+                for (int n = 0; n < 1000; n++) {
+                    recommender.userRecs(3, indices, scores);
+                    recommender.itemRecs(4, indices, scores);
+                    recommender.similarUsers(5, indices, scores);
+                }
+                allocated = Math.min(allocated, threads.getThreadAllocatedBytes(thread) - start);
+            }
+            // less than a byte per call, which leaves room for the measurement itself
+            assertTrue(allocated < 1000, "allocated " + allocated + " bytes");
+        }
+    }
+
     @Test
     void testSimilarUsers() throws Exception {
         Dataset<Integer, String> data = Data.loadMovieLens();
@@ -99,6 +257,663 @@ public class RecommenderTest {
         assertEquals(0, recommender.similarUsers(100000, 5).size());
     }
 
+    @Test
+    void testImplicitThreads() {
+        // rows are solved in chunks of 256 and YtY is summed in parts of 4096 rows,
+        // so both sides have several chunks and the user side has two parts
+        Dataset<Integer, Integer> data = ratings(8209, 521, 50000);
+
+        RecommenderBuilder builder = Recommender.builder().seed(42).iterations(5);
+        Recommender<Integer, Integer> recommender = builder.fitImplicit(data);
+        List<Recommender<Integer, Integer>> threaded = new ArrayList<>();
+        threaded.add(builder.threads(4).fitImplicit(data));
+
+        // an executor with fewer threads than workers, and one that rejects everything, still finish
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        AtomicInteger tasks = new AtomicInteger();
+        try {
+            threaded.add(builder.executor((task) -> {
+                tasks.incrementAndGet();
+                pool.execute(task);
+            }).fitImplicit(data));
+            threaded.add(builder.executor((task) -> {
+                throw new RejectedExecutionException();
+            }).fitImplicit(data));
+        } finally {
+            pool.shutdown();
+        }
+        assertTrue(tasks.get() > 0);
+
+        for (Recommender<Integer, Integer> recommender2 : threaded) {
+            for (int userId : recommender.userIds()) {
+                assertArrayEquals(recommender.userFactors(userId).get(), recommender2.userFactors(userId).get());
+            }
+            for (int itemId : recommender.itemIds()) {
+                assertArrayEquals(recommender.itemFactors(itemId).get(), recommender2.itemFactors(itemId).get());
+            }
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> Recommender.builder().threads(0));
+        assertThrows(IllegalArgumentException.class, () -> Recommender.builder().executor(null));
+    }
+
+    @Test
+    void testExplicitThreads() {
+        // enough ratings that each block of a 4 x 4 grid gets a few hundred
+        Dataset<Integer, Integer> data = ratings(499, 307, 20000);
+
+        Recommender<Integer, Integer> recommender = Recommender.builder().seed(42).threads(4).fitExplicit(data);
+
+        // results depend on the number of blocks but not the number of threads
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            List<Recommender<Integer, Integer>> sameBlocks = Arrays.asList(
+                Recommender.builder().seed(42).threads(4).fitExplicit(data),
+                Recommender.builder().seed(42).blocks(4).fitExplicit(data),
+                Recommender.builder().seed(42).threads(2).blocks(4).fitExplicit(data),
+                Recommender.builder().seed(42).threads(8).blocks(4).fitExplicit(data),
+                Recommender.builder().seed(42).threads(4).executor(pool).fitExplicit(data)
+            );
+            for (Recommender<Integer, Integer> recommender2 : sameBlocks) {
+                for (int userId : recommender.userIds()) {
+                    assertArrayEquals(recommender.userFactors(userId).get(), recommender2.userFactors(userId).get());
+                }
+                for (int itemId : recommender.itemIds()) {
+                    assertArrayEquals(recommender.itemFactors(itemId).get(), recommender2.itemFactors(itemId).get());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        // the grid converges about as well as updating ratings one at a time
+        float[] serialLoss = new float[1];
+        float[] gridLoss = new float[1];
+        Recommender.builder().seed(42).callback((info) -> serialLoss[0] = info.trainLoss).fitExplicit(data);
+        Recommender.builder().seed(42).threads(4).callback((info) -> gridLoss[0] = info.trainLoss).fitExplicit(data);
+        assertTrue(gridLoss[0] < serialLoss[0] * 1.1f, gridLoss[0] + " vs " + serialLoss[0]);
+
+        assertThrows(IllegalArgumentException.class, () -> Recommender.builder().blocks(0));
+    }
+
+    @Test
+    void testOffHeap() {
+        // more than 256 users and items, so threaded solves split rows across threads
+        Dataset<Integer, Integer> data = ratings(521, 307, 10000);
+
+        Recommender<Integer, Integer> recommender = Recommender.builder().seed(42).fitExplicit(data);
+        Recommender<Integer, Integer> recommender2 = Recommender.builder().seed(42).offHeap(true).fitExplicit(data);
+        assertArrayEquals(recommender.userFactors(1).get(), recommender2.userFactors(1).get());
+        assertRecsEquals(recommender.itemRecs(1, 5), recommender2.itemRecs(1, 5));
+
+        // buffer rows are copied in and out for each update in the block grid
+        recommender = Recommender.builder().seed(42).threads(4).fitExplicit(data);
+        recommender2 = Recommender.builder().seed(42).threads(4).offHeap(true).fitExplicit(data);
+        assertArrayEquals(recommender.itemFactors(300).get(), recommender2.itemFactors(300).get());
+        assertRecsEquals(recommender.userRecs(500, 5), recommender2.userRecs(500, 5));
+
+        recommender = Recommender.builder().seed(42).threads(2).fitImplicit(data);
+        recommender2 = Recommender.builder().seed(42).threads(2).offHeap(true).fitImplicit(data);
+        assertArrayEquals(recommender.itemFactors(1).get(), recommender2.itemFactors(1).get());
+        assertRecsEquals(recommender.userRecs(1, 5), recommender2.userRecs(1, 5));
+
+        // rows long enough for vector kernels if the Vector API is added, which KernelsTest covers directly
+        recommender = Recommender.builder().seed(42).factors(64).fitImplicit(data);
+        recommender2 = Recommender.builder().seed(42).factors(64).offHeap(true).fitImplicit(data);
+        assertArrayEquals(recommender.itemFactors(1).get(), recommender2.itemFactors(1).get());
+        assertRecsEquals(recommender.userRecs(1, 5), recommender2.userRecs(1, 5));
+        assertRecsEquals(recommender.userRecs(1, 5), recommender.userRecs(Arrays.asList(1), 5).get(1));
+    }
+
+    @Test
+    void testSimilarIndex(@TempDir Path dir) throws Exception {
+        Dataset<Integer, Integer> data = ratings(97, 89, 1000);
+
+        // the candidate list covers every row, so results are exact
+        Recommender<Integer, Integer> recommender = Recommender.builder().seed(42).fitImplicit(data);
+        Recommender<Integer, Integer> recommender2 = Recommender.builder().seed(42).similarIndex(true).indexM(4).indexEfSearch(100).fitImplicit(data);
+        assertRecsEquals(recommender.itemRecs(1, 5), recommender2.itemRecs(1, 5));
+        assertRecsEquals(recommender.similarUsers(1, 5), recommender2.similarUsers(1, 5));
+
+        Path path = dir.resolve("model.bin");
+        recommender2.save(path);
+        Recommender<Integer, Integer> loaded = Recommender.loadMapped(path);
+        assertRecsEquals(recommender2.itemRecs(1, 5), loaded.itemRecs(1, 5));
+        assertRecsEquals(recommender2.similarUsers(1, 5), loaded.similarUsers(1, 5));
+
+        // the candidate list can be changed without refitting, and is saved
+        Recommender<Integer, Integer> small = Recommender.builder().seed(42).similarIndex(true).indexM(4).indexEfSearch(1).fitImplicit(data);
+        small.save(path);
+        Recommender<Integer, Integer> tuned = Recommender.load(path);
+        tuned.setIndexEfSearch(100);
+        assertRecsEquals(recommender.itemRecs(1, 5), tuned.itemRecs(1, 5));
+        assertRecsEquals(recommender.similarUsers(1, 5), tuned.similarUsers(1, 5));
+        tuned.save(path);
+        assertRecsEquals(recommender.itemRecs(1, 5), Recommender.<Integer, Integer>load(path).itemRecs(1, 5));
+        assertThrows(IllegalArgumentException.class, () -> tuned.setIndexEfSearch(0));
+
+        // with default settings on a catalog much larger than the candidate list, most neighbors are found
+        Dataset<Integer, Integer> large = ratings(997, 2003, 20000);
+        Recommender<Integer, Integer> exact = Recommender.builder().seed(42).fitImplicit(large);
+        Recommender<Integer, Integer> indexed = Recommender.builder().seed(42).similarIndex(true).fitImplicit(large);
+        int found = 0;
+        for (int itemId = 0; itemId < 100; itemId++) {
+            Set<Integer> expected = new HashSet<>(getIds(exact.itemRecs(itemId, 10)));
+            for (int id : getIds(indexed.itemRecs(itemId, 10))) {
+                if (expected.contains(id)) {
+                    found++;
+                }
+            }
+        }
+        assertTrue(found >= 950, "recall " + found / 1000.0);
+    }
+
+    @Test
+    void testUserRecsIndex(@TempDir Path dir) throws Exception {
+        Dataset<Integer, Integer> data = ratings(97, 89, 1000);
+
+        // the candidate list covers every row, so results are exact
+        Recommender<Integer, Integer> recommender = Recommender.builder().seed(42).fitExplicit(data);
+        Recommender<Integer, Integer> recommender2 = Recommender.builder().seed(42).userRecsIndex(true).indexM(4).indexCandidates(100).fitExplicit(data);
+        assertRecsEquals(recommender.userRecs(1, 5), recommender2.userRecs(1, 5));
+        assertRecsEquals(recommender.userRecs(2, 100), recommender2.userRecs(2, 100));
+
+        Path path = dir.resolve("model.bin");
+        recommender2.save(path);
+        Recommender<Integer, Integer> loaded = Recommender.load(path);
+        assertRecsEquals(recommender2.userRecs(1, 5), loaded.userRecs(1, 5));
+
+        Recommender<Integer, Integer> small = Recommender.builder().seed(42).userRecsIndex(true).indexM(4).indexCandidates(1).fitExplicit(data);
+        small.setIndexCandidates(100);
+        assertRecsEquals(recommender.userRecs(2, 100), small.userRecs(2, 100));
+
+        // users with sorted runs of rated items, and candidates from a small part of the catalog
+        Dataset<Integer, Integer> runs = ratings(199, 1499, 6000);
+        Recommender<Integer, Integer> exact = Recommender.builder().seed(42).fitExplicit(runs);
+        Recommender<Integer, Integer> indexed = Recommender.builder().seed(42).userRecsIndex(true).fitExplicit(runs);
+        int found = 0;
+        for (int userId = 0; userId < 100; userId++) {
+            Set<Integer> expected = new HashSet<>(getIds(exact.userRecs(userId, 10)));
+            List<Integer> ids = getIds(indexed.userRecs(userId, 10));
+            for (int id : ids) {
+                if (expected.contains(id)) {
+                    found++;
+                }
+            }
+            for (int i = userId; i < 6000; i += 199) {
+                assertFalse(ids.contains(i % 1499));
+            }
+        }
+        assertTrue(found >= 950, "recall " + found / 1000.0);
+    }
+
+    @Test
+    void testPruneScans(@TempDir Path dir) throws Exception {
+        // users stored as bitsets, then as sorted runs in a catalog large enough to skip most items
+        for (Dataset<Integer, Integer> data : Arrays.asList(ratings(97, 89, 1000), ratings(199, 1499, 6000))) {
+            Recommender<Integer, Integer> recommender = Recommender.builder().seed(42).fitExplicit(data);
+            Recommender<Integer, Integer> recommender2 = Recommender.builder().seed(42).pruneScans(true).fitExplicit(data);
+
+            Path path = dir.resolve("model" + data.size() + ".bin");
+            recommender2.save(path);
+            Recommender<Integer, Integer> loaded = Recommender.loadMapped(path);
+
+            for (Recommender<Integer, Integer> r : Arrays.asList(recommender2, loaded)) {
+                for (int userId : recommender.userIds()) {
+                    assertRecsEquals(recommender.userRecs(userId, 5), r.userRecs(userId, 5));
+                    assertRecsEquals(recommender.similarUsers(userId, 5), r.similarUsers(userId, 5));
+                }
+                for (int itemId : recommender.itemIds()) {
+                    assertRecsEquals(recommender.itemRecs(itemId, 5), r.itemRecs(itemId, 5));
+                }
+            }
+        }
+    }
+
+    @Test
+    void testItemNeighbors(@TempDir Path dir) throws Exception {
+        // enough items for the table to be built in many chunks across threads
+        Dataset<Integer, Integer> data = ratings(199, 1499, 6000);
+
+        Recommender<Integer, Integer> recommender = Recommender.builder().seed(42).threads(2).fitExplicit(data);
+        Recommender<Integer, Integer> recommender2 = Recommender.builder().seed(42).threads(2).itemNeighbors(10).fitExplicit(data);
+
+        Path path = dir.resolve("model.bin");
+        recommender2.save(path);
+        Recommender<Integer, Integer> loaded = Recommender.load(path);
+
+        for (Recommender<Integer, Integer> r : Arrays.asList(recommender2, loaded)) {
+            for (int itemId : recommender.itemIds()) {
+                assertRecsEquals(recommender.itemRecs(itemId, 5), r.itemRecs(itemId, 5));
+                assertRecsEquals(recommender.itemRecs(itemId, 20), r.itemRecs(itemId, 20));
+            }
+        }
+    }
+
+    @Test
+    void testBatchUserRecs() {
+        // users stored as bitsets, then as sorted runs across several blocks of users and tiles of items
+        for (Dataset<Integer, Integer> data : Arrays.asList(ratings(97, 89, 1000), ratings(199, 4099, 12000))) {
+            Recommender<Integer, Integer> recommender = Recommender.builder().seed(42).fitExplicit(data);
+            List<Integer> userIds = new ArrayList<>(recommender.userIds());
+            userIds.add(10000);
+
+            Map<Integer, List<Rec<Integer>>> recs = recommender.userRecs(userIds, 5, 2);
+            assertEquals(userIds, new ArrayList<>(recs.keySet()));
+            for (int userId : userIds) {
+                assertRecsEquals(recommender.userRecs(userId, 5), recs.get(userId));
+            }
+        }
+    }
+
+    @Test
+    void testExporter() throws Exception {
+        Dataset<Integer, String> data = new Dataset<>();
+        for (int i = 0; i < 1000; i++) {
+            data.add(i % 97, "item" + (i % 89), (float) (i % 5 + 1));
+        }
+        data.add(1, "a,\"b\"", 5.0f);
+
+        Recommender<Integer, String> recommender = Recommender.builder().seed(42).fitExplicit(data);
+
+        List<Integer> userIds = new ArrayList<>();
+        recommender.exporter().count(3).threads(2).userRecs((userId, recs) -> {
+            userIds.add(userId);
+            assertRecsEquals(recommender.userRecs(userId, 3), recs);
+        });
+        assertEquals(recommender.userIds(), userIds);
+
+        List<String> itemIds = new ArrayList<>();
+        recommender.exporter().count(3).range(10, 20).itemRecs((itemId, recs) -> {
+            itemIds.add(itemId);
+            assertRecsEquals(recommender.itemRecs(itemId, 3), recs);
+        });
+        assertEquals(recommender.itemIds().subList(10, 20), itemIds);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        recommender.exporter().count(2).range(0, 2).itemRecs(Channels.newChannel(out));
+        List<Rec<String>> recs = recommender.itemRecs("item0", 2);
+        String expected = "item0," + recs.get(0).id + "," + recs.get(0).score + "\n" + "item0," + recs.get(1).id + "," + recs.get(1).score + "\n";
+        assertTrue(out.toString("UTF-8").startsWith(expected));
+        assertEquals(4, out.toString("UTF-8").split("\n").length);
+
+        out = new ByteArrayOutputStream();
+        recommender.exporter().count(1).range(89, 90).itemRecs(Channels.newChannel(out));
+        assertTrue(out.toString("UTF-8").startsWith("\"a,\"\"b\"\"\","));
+
+        // binary COPY format with integer user ids, text item ids, and real scores
+        out = new ByteArrayOutputStream();
+        recommender.exporter().count(2).range(0, 3).binary(true).userRecs(Channels.newChannel(out));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        byte[] signature = new byte[11];
+        in.readFully(signature);
+        assertArrayEquals("PGCOPY\n\377\r\n\0".getBytes(StandardCharsets.ISO_8859_1), signature);
+        assertEquals(0, in.readInt());
+        assertEquals(0, in.readInt());
+        for (int userId : recommender.userIds().subList(0, 3)) {
+            for (Rec<String> rec : recommender.userRecs(userId, 2)) {
+                assertEquals(3, in.readShort());
+                assertEquals(4, in.readInt());
+                assertEquals(userId, in.readInt());
+                byte[] itemId = new byte[in.readInt()];
+                in.readFully(itemId);
+                assertEquals(rec.id, new String(itemId, StandardCharsets.UTF_8));
+                assertEquals(4, in.readInt());
+                assertEquals(rec.score, in.readFloat());
+            }
+        }
+        assertEquals(-1, in.readShort());
+        assertEquals(-1, in.read());
+
+        // bigint ids
+        Dataset<Long, Long> longs = new Dataset<>();
+        longs.add(1L, 1L << 40, 1.0f);
+        longs.add(2L, 2L, 1.0f);
+        out = new ByteArrayOutputStream();
+        Recommender.builder().seed(42).fitImplicit(longs).exporter().count(1).range(0, 1).binary(true).itemRecs(Channels.newChannel(out));
+        in = new DataInputStream(new ByteArrayInputStream(out.toByteArray(), 19, out.size() - 19));
+        assertEquals(3, in.readShort());
+        assertEquals(8, in.readInt());
+        assertEquals(1L << 40, in.readLong());
+        assertEquals(8, in.readInt());
+        assertEquals(2L, in.readLong());
+
+        // an empty export is still a valid file
+        out = new ByteArrayOutputStream();
+        recommender.exporter().range(0, 0).binary(true).itemRecs(Channels.newChannel(out));
+        assertEquals(21, out.size());
+    }
+
+    @Test
+    void testFoldIn(@TempDir Path dir) throws Exception {
+        Dataset<Integer, Integer> data = ratings(97, 89, 1000);
+        // the same ratings as user 3
+        Map<Integer, Float> values = new HashMap<>();
+        for (int i = 3; i < 1000; i += 97) {
+            values.put(i % 89, (float) (i % 5 + 1));
+        }
+
+        for (boolean implicit : new boolean[] {true, false}) {
+            RecommenderBuilder builder = Recommender.builder().seed(42).similarIndex(true);
+            Recommender<Integer, Integer> recommender = implicit ? builder.fitImplicit(data) : builder.fitExplicit(data);
+            recommender.foldInUser(1000, values);
+            recommender.foldInItem(1000, Collections.singletonMap(3, 1.0f));
+
+            assertEquals(98, recommender.userIds().size());
+            assertEquals(1000, recommender.userIds().get(97));
+            assertEquals(1000, recommender.itemIds().get(89));
+            for (Rec<Integer> rec : recommender.userRecs(1000, 100)) {
+                assertFalse(values.containsKey(rec.id));
+            }
+            assertFalse(getIds(recommender.userRecs(3, 100)).contains(1000));
+            assertTrue(getIds(recommender.userRecs(4, 100)).contains(1000));
+            assertTrue(getIds(recommender.itemRecs(5, 100)).contains(1000));
+            assertTrue(getIds(recommender.similarUsers(3, 100)).contains(1000));
+
+            Map<Integer, List<Rec<Integer>>> recs = recommender.userRecs(Arrays.asList(3, 4, 1000), 5);
+            for (int userId : recs.keySet()) {
+                assertRecsEquals(recommender.userRecs(userId, 5), recs.get(userId));
+            }
+
+            // updates a folded-in user
+            recommender.foldInUser(1000, Collections.singletonMap(5, 1.0f));
+            assertEquals(98, recommender.userIds().size());
+            assertFalse(getIds(recommender.userRecs(1000, 100)).contains(5));
+            assertThrows(IllegalArgumentException.class, () -> recommender.foldInUser(3, values));
+
+            Path path = dir.resolve("model.bin");
+            recommender.save(path);
+            Recommender<Integer, Integer> loaded = Recommender.load(path);
+            assertEquals(recommender.userIds(), loaded.userIds());
+            assertEquals(recommender.itemIds(), loaded.itemIds());
+            assertEquals(recommender.predict(1000, 1000), loaded.predict(1000, 1000));
+            assertRecsEquals(recommender.userRecs(1000, 5), loaded.userRecs(1000, 5));
+            assertRecsEquals(recommender.itemRecs(1000, 5), loaded.itemRecs(1000, 5));
+            loaded.foldInUser(1001, values);
+
+            // fold-in doesn't lock on the instance, so callers that do can't block it
+            Thread thread = new Thread(() -> loaded.foldInUser(1002, values));
+            synchronized (loaded) {
+                thread.start();
+                thread.join(10000);
+                assertFalse(thread.isAlive());
+            }
+        }
+    }
+
+    @Test
+    void testWarmStart(@TempDir Path dir) throws Exception {
+        Recommender<Integer, Integer> previous = Recommender.builder().seed(42).keepLearningRates(true).fitExplicit(ratings(97, 89, 1000));
+        previous.foldInUser(1000, Collections.singletonMap(1, 5.0f));
+
+        // the same ratings in reverse, so ids have different indices and rows are matched by id
+        Dataset<Integer, Integer> data = new Dataset<>();
+        data.add(1001, 2, 5.0f);
+        data.add(1000, 1, 5.0f);
+        for (int i = 999; i >= 0; i--) {
+            data.add(i % 97, i % 89, (float) (i % 5 + 1));
+        }
+
+        Recommender<Integer, Integer> recommender = Recommender.builder().iterations(0).warmStart(previous).fitExplicit(data);
+        assertTrue(recommender.userIds().indexOf(3) != previous.userIds().indexOf(3));
+        assertArrayEquals(previous.userFactors(3).get(), recommender.userFactors(3).get());
+        assertArrayEquals(previous.userFactors(1000).get(), recommender.userFactors(1000).get());
+        assertArrayEquals(previous.itemFactors(5).get(), recommender.itemFactors(5).get());
+
+        Path path = dir.resolve("model.bin");
+        previous.save(path);
+        Recommender<Integer, Integer> loaded = Recommender.load(path);
+        RecommenderBuilder builder = Recommender.builder().seed(1).iterations(3).keepLearningRates(true);
+        Recommender<Integer, Integer> recommender2 = builder.warmStart(previous).fitExplicit(data);
+        Recommender<Integer, Integer> recommender3 = builder.warmStart(loaded).fitExplicit(data);
+        assertArrayEquals(recommender2.userFactors(3).get(), recommender3.userFactors(3).get());
+
+        assertThrows(IllegalArgumentException.class, () -> Recommender.builder().factors(4).warmStart(previous).fitExplicit(data));
+    }
+
+    @Test
+    void testUpdate(@TempDir Path dir) throws Exception {
+        // user 3 is stored as a bitset, then as a sorted run
+        for (Dataset<Integer, Integer> data : Arrays.asList(ratings(97, 89, 1000), ratings(199, 1499, 6000))) {
+            RecommenderBuilder builder = Recommender.builder().seed(42).keepLearningRates(true);
+            Recommender<Integer, Integer> recommender = builder.fitExplicit(data);
+            Recommender<Integer, Integer> pruned = builder.pruneScans(true).fitExplicit(data);
+            Recommender<Integer, Integer> indexed = Recommender.builder().seed(42).keepLearningRates(true).userRecsIndex(true).fitExplicit(data);
+            float[] before = recommender.userFactors(3).get();
+            int item = recommender.userRecs(3, 1).get(0).id;
+
+            Dataset<Integer, Integer> ratings = new Dataset<>();
+            ratings.add(3, item, 1.0f);
+            ratings.add(3, 7, 5.0f);
+            ratings.add(5000, 7, 5.0f);
+            // added items are merged with ones from earlier calls
+            Dataset<Integer, Integer> more = new Dataset<>();
+            more.add(3, 1, 1.0f);
+            more.add(3, item, 1.0f);
+            for (Recommender<Integer, Integer> r : Arrays.asList(recommender, pruned, indexed)) {
+                r.update(ratings);
+                r.update(more);
+            }
+            assertFalse(Arrays.equals(before, recommender.userFactors(3).get()));
+            assertFalse(getIds(recommender.userRecs(3, 100)).contains(item));
+            assertFalse(getIds(recommender.userRecs(3, 100)).contains(1));
+            assertFalse(getIds(indexed.userRecs(3, 100)).contains(item));
+            assertFalse(getIds(indexed.userRecs(3, 100)).contains(1));
+            assertFalse(recommender.userIds().contains(5000));
+            assertEquals(getIds(recommender.userRecs(3, 5)), getIds(pruned.userRecs(3, 5)));
+
+            Map<Integer, List<Rec<Integer>>> recs = recommender.userRecs(recommender.userIds(), 5);
+            for (int userId : recommender.userIds()) {
+                assertRecsEquals(recommender.userRecs(userId, 5), recs.get(userId));
+            }
+
+            Path path = dir.resolve("model.bin");
+            recommender.save(path);
+            Recommender<Integer, Integer> loaded = Recommender.load(path);
+            assertArrayEquals(recommender.userFactors(3).get(), loaded.userFactors(3).get());
+            assertRecsEquals(recommender.userRecs(3, 100), loaded.userRecs(3, 100));
+
+            assertThrows(IllegalStateException.class, () -> Recommender.fitExplicit(data).update(ratings));
+            assertThrows(UnsupportedOperationException.class, () -> Recommender.fitImplicit(data).update(ratings));
+        }
+    }
+
+    @Test
+    void testUpdateWhileReading() throws Exception {
+        // user 3 is stored as a bitset, then as a sorted run
+        for (Dataset<Integer, Integer> data : Arrays.asList(ratings(97, 89, 1000), ratings(199, 1499, 6000))) {
+            Recommender<Integer, Integer> recommender = Recommender.builder().seed(42).keepLearningRates(true).pruneScans(true).fitExplicit(data);
+
+            // the only writer records each version after it's published, and every read must match one
+            Set<String> versions = ConcurrentHashMap.newKeySet();
+            versions.add(predictRead(recommender));
+            versions.add(userRecsRead(recommender));
+            versions.add(batchRecsRead(recommender));
+            Thread writer = new Thread(() -> {
+                for (int n = 0; n < 500; n++) {
+                    // rating the top item changes which items are excluded
+                    Dataset<Integer, Integer> ratings = new Dataset<>();
+                    ratings.add(3, recommender.userRecs(3, 1).get(0).id, (float) (n % 5 + 1));
+                    ratings.add(n % 97, 7, (float) (n % 3 + 1));
+                    recommender.update(ratings);
+                    versions.add(predictRead(recommender));
+                    versions.add(userRecsRead(recommender));
+                    versions.add(batchRecsRead(recommender));
+                }
+            });
+
+            List<String> reads = new ArrayList<>();
+            writer.start();
+            while (writer.isAlive()) {
+                reads.add(predictRead(recommender));
+                reads.add(userRecsRead(recommender));
+                reads.add(batchRecsRead(recommender));
+            }
+            writer.join();
+
+            assertTrue(reads.size() > 0);
+            for (String read : reads) {
+                assertTrue(versions.contains(read), read);
+            }
+        }
+    }
+
+    private String predictRead(Recommender<Integer, Integer> recommender) {
+        return "predict " + recommender.predict(3, 7);
+    }
+
+    private String userRecsRead(Recommender<Integer, Integer> recommender) {
+        List<Rec<Integer>> recs = recommender.userRecs(3, 5);
+        return getIds(recs) + " " + recs.stream().map(v -> v.score).collect(Collectors.toList());
+    }
+
+    private String batchRecsRead(Recommender<Integer, Integer> recommender) {
+        List<Rec<Integer>> recs = recommender.userRecs(Arrays.asList(3), 5).get(3);
+        return "batch " + getIds(recs) + " " + recs.stream().map(v -> v.score).collect(Collectors.toList());
+    }
+
+    @Test
+    void testHolder() throws Exception {
+        Dataset<Integer, Integer> data = new Dataset<>();
+        for (int i = 0; i < 100; i++) {
+            data.add(i % 11, i % 13, 1.0f);
+        }
+
+        Recommender<Integer, Integer> previous = Recommender.builder().seed(1).fitImplicit(data);
+        Recommender<Integer, Integer> recommender = Recommender.builder().seed(2).fitImplicit(data);
+        List<Float> expected = Arrays.asList(previous.predict(1, 2), recommender.predict(1, 2));
+        assertFalse(expected.get(0).equals(expected.get(1)));
+
+        RecommenderHolder<Integer, Integer> holder = new RecommenderHolder<>(previous);
+        assertThrows(IllegalArgumentException.class, () -> holder.swap(null));
+
+        // swap back and forth while another thread reads
+        Thread reader = new Thread(() -> {
+            for (int n = 0; n < 10000; n++) {
+                Recommender<Integer, Integer> current = holder.get();
+                float score = current.predict(1, 2);
+                assertEquals(current == previous ? expected.get(0) : expected.get(1), score);
+                assertTrue(expected.contains(score));
+            }
+        });
+        List<Throwable> errors = new ArrayList<>();
+        reader.setUncaughtExceptionHandler((thread, e) -> errors.add(e));
+        reader.start();
+        while (reader.isAlive()) {
+            assertSame(previous, holder.swap(recommender));
+            assertFalse(holder.swap(previous, previous));
+            assertTrue(holder.swap(recommender, previous));
+        }
+        reader.join();
+        assertTrue(errors.isEmpty(), errors.toString());
+        assertSame(previous, holder.get());
+    }
+
+    @Test
+    void testRank() {
+        Dataset<Integer, Integer> data = ratings(97, 89, 1000);
+
+        Recommender<Integer, Integer> recommender = Recommender.builder().seed(42).pruneScans(true).fitExplicit(data);
+        List<Rec<Integer>> all = recommender.userRecs(3, 89);
+        List<Integer> candidates = Arrays.asList(all.get(20).id, 1000, all.get(10).id, all.get(30).id, all.get(10).id);
+        List<Rec<Integer>> ranked = recommender.rank(3, candidates, 2);
+        assertEquals(Arrays.asList(all.get(10).id, all.get(20).id), getIds(ranked));
+        assertEquals(all.get(10).score, ranked.get(0).score);
+        assertTrue(recommender.rank(1000, candidates, 2).isEmpty());
+
+        List<Integer> even = getIds(all).stream().filter((id) -> id % 2 == 0).limit(5).collect(Collectors.toList());
+        assertEquals(even, getIds(recommender.userRecs(3, 5, (Integer id) -> id % 2 == 0)));
+        BitSet indices = new BitSet();
+        for (int j = 0; j < recommender.itemIds().size(); j++) {
+            indices.set(j, recommender.itemIds().get(j) % 2 == 0);
+        }
+        assertEquals(even, getIds(recommender.userRecs(3, 5, indices)));
+
+        // filters are only tested for items that would make the results,
+        // including for users with sorted runs in a catalog much larger than the results
+        for (Dataset<Integer, Integer> filterData : Arrays.asList(data, ratings(199, 1499, 6000))) {
+            for (boolean prune : new boolean[] {false, true}) {
+                Recommender<Integer, Integer> scan = Recommender.builder().seed(42).pruneScans(prune).fitExplicit(filterData);
+                List<Integer> expected = getIds(scan.userRecs(3, scan.itemIds().size())).stream().filter((id) -> id % 2 == 0).limit(5).collect(Collectors.toList());
+                AtomicInteger tests = new AtomicInteger();
+                assertEquals(expected, getIds(scan.userRecs(3, 5, (Integer id) -> tests.incrementAndGet() > 0 && id % 2 == 0)));
+                assertTrue(tests.get() < scan.itemIds().size() / 2, "tested " + tests.get() + " of " + scan.itemIds().size());
+            }
+        }
+
+        List<Integer> similar = getIds(recommender.itemRecs(4, 88)).stream().filter((id) -> id % 2 == 0).limit(5).collect(Collectors.toList());
+        assertEquals(similar, getIds(recommender.itemRecs(4, 5, indices)));
+    }
+
+    @Test
+    void testBasketRecs() {
+        Dataset<Integer, Integer> data = ratings(97, 89, 1000);
+
+        Recommender<Integer, Integer> recommender = Recommender.builder().seed(42).pruneScans(true).fitExplicit(data);
+        List<Rec<Integer>> itemRecs = recommender.itemRecs(4, 5);
+        List<Rec<Integer>> basketRecs = recommender.basketRecs(Arrays.asList(4, 1000), 5);
+        assertEquals(getIds(itemRecs), getIds(basketRecs));
+        assertEquals(itemRecs.get(0).score, basketRecs.get(0).score, 0.00001);
+
+        List<Integer> ids = getIds(recommender.basketRecs(Arrays.asList(4, 5, 6), 88));
+        assertEquals(86, ids.size());
+        assertFalse(ids.contains(4) || ids.contains(5) || ids.contains(6));
+
+        Map<Integer, Float> weights = new HashMap<>();
+        weights.put(4, 1.0f);
+        weights.put(5, 0.0f);
+        assertEquals(getIds(recommender.itemRecs(4, 3, (Integer id) -> id != 5)), getIds(recommender.basketRecs(weights, 3)));
+        assertTrue(recommender.basketRecs(Arrays.asList(1000), 5).isEmpty());
+
+        // pruned baskets match a full scan in a catalog large enough to skip most items
+        Dataset<Integer, Integer> large = ratings(199, 1499, 6000);
+        Recommender<Integer, Integer> scan = Recommender.builder().seed(42).fitExplicit(large);
+        Recommender<Integer, Integer> pruned = Recommender.builder().seed(42).pruneScans(true).fitExplicit(large);
+        for (int itemId = 0; itemId < 100; itemId++) {
+            List<Integer> basket = Arrays.asList(itemId, itemId + 100, itemId + 200);
+            assertRecsEquals(scan.basketRecs(basket, 10), pruned.basketRecs(basket, 10));
+        }
+    }
+
+    @Test
+    void testSolvers() {
+        Dataset<Integer, Integer> data = ratings(97, 89, 1000);
+
+        List<Float> losses = new ArrayList<>();
+        RecommenderBuilder builder = Recommender.builder().seed(42).solver(Solver.CHOLESKY).iterations(5);
+        Recommender<Integer, Integer> recommender = builder.callback((info) -> losses.add(info.trainLoss)).fitExplicit(data);
+        assertEquals(5, losses.size());
+        assertTrue(losses.get(4) < losses.get(0));
+        assertTrue(losses.get(4) < 1.0f);
+        assertEquals(5, recommender.userRecs(3, 5).size());
+
+        assertThrows(IllegalStateException.class, () -> recommender.update(data));
+
+        // more than 256 rows on each side, so solves are split across threads,
+        // and more than 4096 users, so the Gramian for implicit feedback is too
+        Dataset<Integer, Integer> large = ratings(8209, 521, 50000);
+        for (boolean implicit : new boolean[] {false, true}) {
+            RecommenderBuilder serialBuilder = Recommender.builder().seed(42).solver(Solver.CHOLESKY).iterations(2);
+            RecommenderBuilder threadedBuilder = Recommender.builder().seed(42).solver(Solver.CHOLESKY).iterations(2).threads(4);
+            Recommender<Integer, Integer> serial = implicit ? serialBuilder.fitImplicit(large) : serialBuilder.fitExplicit(large);
+            Recommender<Integer, Integer> threaded = implicit ? threadedBuilder.fitImplicit(large) : threadedBuilder.fitExplicit(large);
+            for (int userId : serial.userIds()) {
+                assertArrayEquals(serial.userFactors(userId).get(), threaded.userFactors(userId).get());
+            }
+            for (int itemId : serial.itemIds()) {
+                assertArrayEquals(serial.itemFactors(itemId).get(), threaded.itemFactors(itemId).get());
+            }
+        }
+
+        Recommender<Integer, Integer> exact = Recommender.builder().seed(42).solver(Solver.CHOLESKY).fitImplicit(data);
+        Recommender<Integer, Integer> cg = Recommender.builder().seed(42).cgSteps(20).fitImplicit(data);
+        assertEquals(getIds(exact.itemRecs(3, 5)), getIds(cg.itemRecs(3, 5)));
+        assertFalse(Arrays.equals(cg.userFactors(3).get(), Recommender.builder().seed(42).fitImplicit(data).userFactors(3).get()));
+
+        assertThrows(IllegalArgumentException.class, () -> Recommender.builder().solver(Solver.SGD).fitImplicit(data));
+        assertThrows(IllegalArgumentException.class, () -> Recommender.builder().solver(Solver.CG).fitExplicit(data));
+    }
+
     @Test
     void testIds() {
         Dataset<Integer, String> data = new Dataset<>();
@@ -111,6 +926,56 @@ public class RecommenderTest {
         assertEquals(recommender.itemIds(), Arrays.asList("A", "B"));
     }
 
+    @Test
+    void testDatasetChangedAfterFit() {
+        Dataset<Integer, String> data = new Dataset<>();
+        data.add(1, "A", 1.0f);
+        data.add(2, "B", 1.0f);
+
+        Recommender<Integer, String> recommender = Recommender.fitImplicit(data);
+        data.add(3, "C", 1.0f);
+
+        assertEquals(3, data.size());
+        assertEquals(recommender.userIds(), Arrays.asList(1, 2));
+        assertEquals(recommender.itemIds(), Arrays.asList("A", "B"));
+    }
+
+    @Test
+    void testDatasetCapacity() {
+        Dataset<Integer, String> data = new Dataset<>(0);
+        data.add(1, "A", 1.0f);
+        data.add(2, "B", 1.0f);
+        assertEquals(2, data.size());
+
+        assertThrows(IllegalArgumentException.class, () -> new Dataset<Integer, String>(-1));
+    }
+
+    @Test
+    void testIdTypes() {
+        Dataset<Object, Object> data = new Dataset<>();
+        for (int i = 0; i < 100; i++) {
+            data.add((long) i, "item" + i, 1.0f);
+        }
+        data.add(1, "café", 1.0f);
+        data.add("user", "アイテム", 1.0f);
+        data.add(null, 1, 1.0f);
+
+        Recommender<Object, Object> recommender = Recommender.fitImplicit(data);
+        assertEquals(103, recommender.userIds().size());
+        assertEquals(103, recommender.itemIds().size());
+        assertEquals(50L, recommender.userIds().get(50));
+        assertEquals(1, recommender.userIds().get(100));
+        assertEquals("user", recommender.userIds().get(101));
+        assertEquals(null, recommender.userIds().get(102));
+        assertEquals("item50", recommender.itemIds().get(50));
+        assertEquals("café", recommender.itemIds().get(100));
+        assertEquals("アイテム", recommender.itemIds().get(101));
+        assertTrue(recommender.userFactors(50L).isPresent());
+        assertFalse(recommender.userFactors(50).isPresent());
+        assertTrue(recommender.itemFactors("アイテム").isPresent());
+        assertFalse(recommender.itemFactors("item100").isPresent());
+    }
+
     @Test
     void testFactors() {
         Dataset<Integer, String> data = new Dataset<>();
@@ -141,6 +1006,31 @@ public class RecommenderTest {
         assertEquals(0, recommender.userRecs(1000, 5).size());
     }
 
+    @Test
+    void testSaveLoad(@TempDir Path dir) throws Exception {
+        Dataset<Long, String> data = new Dataset<>();
+        for (int i = 0; i < 1000; i++) {
+            data.add((long) (i % 97), "item" + (i % 89), (float) (i % 5 + 1));
+        }
+
+        Recommender<Long, String> recommender = Recommender.builder().factors(12).fitExplicit(data);
+        Path path = dir.resolve("model.bin");
+        recommender.save(path);
+
+        Recommender<Long, String> loaded = Recommender.load(path);
+        Recommender<Long, String> mapped = Recommender.loadMapped(path);
+        for (Recommender<Long, String> r : Arrays.asList(loaded, mapped)) {
+            assertEquals(recommender.userIds(), r.userIds());
+            assertEquals(recommender.itemIds(), r.itemIds());
+            assertEquals(recommender.globalMean(), r.globalMean());
+            assertArrayEquals(recommender.userFactors(3L).get(), r.userFactors(3L).get());
+            assertEquals(recommender.predict(3L, "item5"), r.predict(3L, "item5"));
+            assertRecsEquals(recommender.userRecs(3L, 5), r.userRecs(3L, 5));
+            assertRecsEquals(recommender.itemRecs("item5", 5), r.itemRecs("item5", 5));
+            assertRecsEquals(recommender.similarUsers(3L, 5), r.similarUsers(3L, 5));
+        }
+    }
+
     @Test
     void testCallback() {
         Dataset<Integer, Integer> data = new Dataset<>();
@@ -164,6 +1054,23 @@ public class RecommenderTest {
         assertEquals(Float.NaN, recommender.predict(1, 1));
     }
 
+    // user i % users rates item i % items, so pairs don't repeat when users and items are coprime and count is at most their product
+    // each user rates about count / users items
+    static Dataset<Integer, Integer> ratings(int users, int items, int count) {
+        Dataset<Integer, Integer> data = new Dataset<>();
+        for (int i = 0; i < count; i++) {
+            data.add(i % users, i % items, (float) (i % 5 + 1));
+        }
+        return data;
+    }
+
+    <T> void assertRecsEquals(List<Rec<T>> expected, List<Rec<T>> actual) {
+        assertEquals(getIds(expected), getIds(actual));
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).score, actual.get(i).score);
+        }
+    }
+
     <T> List<T> getIds(List<Rec<T>> recs) {
         return recs.stream().map(v -> v.id).collect(Collectors.toList());
     }